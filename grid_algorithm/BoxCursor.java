@@ -0,0 +1,145 @@
+package grid_algorithm;
+
+/**
+ * Cursor over the vertices of a hyper-box of a {@link GridGraph}, as runs of consecutive indices.
+ * <br>
+ * Along the innermost dimension (stride 1), the vertices of a box are consecutive in the enumeration scheme of {@link GridGraph#toIndex(int[])}.
+ * If the box moreover spans the whole grid along all dimensions behind some dimension r, its vertices are consecutive along r as well,
+ * s.t. a run covers <code>(higher<sub>r</sub>-lower<sub>r</sub>+1)&#8729;strides[r]</code> vertices, e.g. a whole half of the grid for the children of the root.
+ * The cursor steps through the runs in ascending order of their first vertex, with an odometer over the dimensions in front of r.
+ * <br>
+ * Usage, e.g. to sum up a vector over a box:<br>
+ * <code>
+ * &emsp;for(BoxCursor c = new BoxCursor(g).reset(lower, higher); c.next(); )<br>
+ * &emsp;&emsp;for(int v = c.start(); v &lt; c.end(); v++) s += a[v];
+ * </code><br>
+ * A cursor can be reset to any number of boxes of the same grid, and neither {@link #reset(int[], int[])} nor {@link #next()} allocate.
+ * A cursor must not be shared between threads.
+ * @author Jonas Schulz
+ */
+public final class BoxCursor {
+    /**
+     * The grid graph whose vertices are iterated.
+     */
+    final GridGraph g;
+    /**
+     * Lower bounds of the current box.
+     */
+    final int[] lower;
+    /**
+     * Higher bounds of the current box.
+     */
+    final int[] higher;
+    /**
+     * Coordinates of the current run in the dimensions in front of {@link #run_dim}.
+     */
+    final int[] position;
+    /**
+     * The dimension along which the runs extend; all dimensions behind it are spanned completely by the box.
+     */
+    int run_dim;
+    /**
+     * First vertex of the current run.
+     */
+    int start;
+    /**
+     * Number of vertices per run.
+     */
+    int length;
+    /**
+     * State of the cursor: 0 before the first run, 1 on a run, 2 after the last run.
+     */
+    int state;
+
+    /**
+     * Standard constructor. The cursor has no box until {@link #reset(int[], int[])} is called.
+     * @param g The grid graph whose vertices are iterated.
+     */
+    public BoxCursor(GridGraph g){
+        this.g = g;
+        int d = g.getDim();
+        this.lower = new int[d];
+        this.higher = new int[d];
+        this.position = new int[d];
+        this.state = 2;
+    }
+
+    /**
+     * Positions this cursor in front of the first run of the given box. The bounds are copied.
+     * @param lowerBounds Lower bounds of the box.
+     * @param higherBounds Higher bounds of the box.
+     * @return This cursor.
+     */
+    public BoxCursor reset(int[] lowerBounds, int[] higherBounds){
+        int d = lower.length;
+        System.arraycopy(lowerBounds, 0, lower, 0, d);
+        System.arraycopy(higherBounds, 0, higher, 0, d);
+        state = 0;
+        if(d == 0){
+            run_dim = 0;
+            start = 0;
+            length = 1;
+            return this;
+        }
+        run_dim = d - 1;
+        while(run_dim > 0 && lower[run_dim] == 0 && higher[run_dim] == g.nodesPerDim[run_dim] - 1){
+            run_dim--;
+        }
+        length = (higher[run_dim] - lower[run_dim] + 1)*g.strides[run_dim];
+        start = lower[run_dim]*g.strides[run_dim];
+        for(int k = 0; k < run_dim; k++){
+            position[k] = lower[k];
+            start += lower[k]*g.strides[k];
+            if(higher[k] < lower[k]) state = 2;
+        }
+        if(length <= 0) state = 2;
+        return this;
+    }
+
+    /**
+     * Advances this cursor to the next run.
+     * @return <code>true</code> iff there is a next run, <code>false</code> iff the box is exhausted.
+     */
+    public boolean next(){
+        if(state == 0){
+            state = 1;
+            return true;
+        }
+        if(state == 2) return false;
+        for(int k = run_dim - 1; k >= 0; k--){
+            if(position[k] < higher[k]){
+                position[k]++;
+                start += g.strides[k];
+                return true;
+            }
+            start -= (position[k] - lower[k])*g.strides[k];
+            position[k] = lower[k];
+        }
+        state = 2;
+        return false;
+    }
+
+    /**
+     * Returns the first vertex of the current run.
+     * @return The first vertex, according to the enumeration scheme of {@link GridGraph#toIndex(int[])}.
+     */
+    public int start(){
+        return start;
+    }
+
+    /**
+     * Returns the number of vertices of the current run. All runs of a box have the same length.
+     * @return The length of the run.
+     */
+    public int length(){
+        return length;
+    }
+
+    /**
+     * Returns the vertex after the last vertex of the current run.
+     * @return <code>start() + length()</code>.
+     */
+    public int end(){
+        return start + length;
+    }
+}
@@ -0,0 +1,97 @@
+package grid_algorithm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loop over a range of indices in chunks of a fixed size, which runs the chunks in parallel on a fork-join pool.
+ * This is the shared scaffolding of the parallel passes, e.g. {@link GridApproximatorTree#for_chunks(int, int, ChunkAction)},
+ * the tree build of {@link ExplicitTreeTopology}, the sweeps of {@link SummedAreaTable} and the stencils of {@link IncidenceKernel}.
+ * <br>
+ * The chunk boundaries only depend on the range and the chunk size, so that results stored per chunk and combined in chunk order
+ * do not depend on the pool. In parallel, the chunks are distributed by a {@link RecursiveAction} that halves its range of chunks
+ * until a single chunk is left, which is invoked on the pool, i.e. the calling thread waits for all chunks.
+ * @author Jonas Schulz
+ */
+final class Chunks {
+    /**
+     * Action on a chunk of indices.
+     */
+    @FunctionalInterface
+    interface ChunkAction {
+        /**
+         * Processes the indices <code>from</code> to <code>to-1</code>.
+         * @param chunk Index of the chunk within the range, to store partial results.
+         * @param from First index of the chunk.
+         * @param to Index after the last index of the chunk.
+         */
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * Task that processes the chunks <code>first</code> to <code>last-1</code>.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int from, to, chunk_size, first, last;
+        final transient ChunkAction action;
+
+        ChunkTask(int from, int to, int chunk_size, int first, int last, ChunkAction action){
+            this.from = from;
+            this.to = to;
+            this.chunk_size = chunk_size;
+            this.first = first;
+            this.last = last;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute(){
+            if(last - first == 1){
+                run_chunk(from, to, chunk_size, first, action);
+            } else {
+                int mid = (first + last) >>> 1;
+                invokeAll(new ChunkTask(from, to, chunk_size, first, mid, action),
+                        new ChunkTask(from, to, chunk_size, mid, last, action));
+            }
+        }
+    }
+
+    private Chunks(){
+    }
+
+    /**
+     * Splits the indices <code>from</code> to <code>to-1</code> into chunks of <code>chunk_size</code> indices and runs the action on each chunk.
+     * Iff <code>pool</code> is set and there is more than one chunk, the chunks are processed in parallel on the pool;
+     * otherwise, they are processed in ascending order on the calling thread.
+     * @param pool The pool, or <code>null</code>.
+     * @param from First index.
+     * @param to Index after the last index.
+     * @param chunk_size Number of indices per chunk, at least 1.
+     * @param action The action for each chunk.
+     * @return The number of chunks.
+     */
+    static int run(ForkJoinPool pool, int from, int to, int chunk_size, ChunkAction action){
+        int chunks = (to - from + chunk_size - 1) / chunk_size;
+        if(pool == null || chunks <= 1){
+            for(int c = 0; c < chunks; c++){
+                run_chunk(from, to, chunk_size, c, action);
+            }
+        } else {
+            pool.invoke(new ChunkTask(from, to, chunk_size, 0, chunks, action));
+        }
+        return chunks;
+    }
+
+    /**
+     * Runs the action on chunk <code>c</code>.
+     * @param from First index of the range.
+     * @param to Index after the last index of the range.
+     * @param chunk_size Number of indices per chunk.
+     * @param c The chunk.
+     * @param action The action.
+     */
+    private static void run_chunk(int from, int to, int chunk_size, int c, ChunkAction action){
+        action.run(c, from + c*chunk_size, Math.min(to, from + (c+1)*chunk_size));
+    }
+}
@@ -0,0 +1,267 @@
+package grid_algorithm;
+
+import project_utils.Triple;
+
+/**
+ * Evaluates the potential <i>&phi;(f + h &#8729; s)</i> along a fixed search direction <i>s = sgn(&nabla;&phi;)</i>,
+ * in time linear in the size of the approximator tree instead of the size of the graph.
+ * <br>
+ * Since s<sub>e</sub> &isin; {-1, 0, 1}, the graph part collapses to
+ * <i>&sum;<sub>e</sub> e<sup>f<sub>e</sub>+h&#8729;s<sub>e</sub></sup>+e<sup>-f<sub>e</sub>-h&#8729;s<sub>e</sub></sup> =
+ * e<sup>h</sup> &#8729; U + e<sup>-h</sup> &#8729; D + C</i> with
+ * <ul>
+ * <li><i>U = &sum;<sub>s<sub>e</sub>&ne;0</sub> e<sup>s<sub>e</sub>f<sub>e</sub></sup></i>,</li>
+ * <li><i>D = &sum;<sub>s<sub>e</sub>&ne;0</sub> e<sup>-s<sub>e</sub>f<sub>e</sub></sup></i> and</li>
+ * <li><i>C = &sum;<sub>s<sub>e</sub>=0</sub> e<sup>f<sub>e</sub></sup>+e<sup>-f<sub>e</sub></sup></i>.</li>
+ * </ul>
+ * The tree part uses the linearity of the residual: <i>R(b - B(f + h&#8729;s)) = R(b - Bf) - h &#8729; RBs</i>,
+ * where both <i>R(b - Bf)</i> and <i>RBs</i> are computed once per direction.
+ * <br>
+ * Use {@link #prepare(GridFlow, GridFlow, GridDemand)} once per iteration, and then {@link #potential(double)} for each probe.
+ * @author Jonas Schulz
+ */
+class DirectionalPotential {
+    /**
+     * The algorithm instance whose potential is evaluated.
+     */
+    final GridApproximation ga;
+    /**
+     * Scratch buffer for <i>Bs</i> and <i>b - Bf</i>.
+     */
+    final GridDemand scratch;
+    /**
+     * Scratch buffer for the direction <i>s = sgn(&nabla;&phi;)</i>, whose excess flows <i>Bs</i> are calculated by the incidence kernels of the solve.
+     */
+    final GridFlow signs;
+    /**
+     * Congestions <i>(R(b - Bf))<sub>i</sub></i> of the tree nodes, ordered as the entries 1 to <code>size-1</code> of {@link GridApproximatorTree#congestion}.
+     */
+    final double[] congestion;
+    /**
+     * Congestions <i>(RBs)<sub>i</sub></i> of the tree nodes, ordered as the entries 1 to <code>size-1</code> of {@link GridApproximatorTree#congestion}.
+     */
+    final double[] congestion_dir;
+    /**
+     * Scratch buffer for the congestions at a probe.
+     */
+    final double[] buffer;
+    /**
+     * Scratch buffers of the concurrent probes, see {@link #worker_buffers(int)}.
+     */
+    double[][] worker_buffers = new double[0][];
+    /**
+     * <i>ln(U)</i>, <i>ln(D)</i> and <i>ln(C)</i> of the graph part, see {@link DirectionalPotential}.
+     */
+    double log_up, log_down, log_zero;
+    /**
+     * Whether {@link #prepare(GridFlow, GridFlow, GridDemand)} has been called since the last {@link #invalidate()}.
+     */
+    boolean prepared = false;
+
+    /**
+     * Standard constructor.
+     * @param ga The algorithm instance whose potential is evaluated.
+     * @param allocator Allocator for the scratch vectors, usually the allocator of the solve.
+     */
+    DirectionalPotential(GridApproximation ga, StorageAllocator allocator){
+        this.ga = ga;
+        this.scratch = new GridDemand(ga.g, allocator);
+        this.signs = new GridFlow(ga.g, allocator);
+        int nodes = ga.t.m;
+        this.congestion = new double[nodes];
+        this.congestion_dir = new double[nodes];
+        this.buffer = new double[nodes];
+    }
+
+    /**
+     * Precomputes all quantities of the direction <i>s = sgn(&nabla;&phi;)</i> at the flow <i>f</i>.
+     * This takes two passes over the edges, two applications of <i>B</i> by the incidence kernels of the solve and two tree updates.
+     * Afterwards, the tree {@link GridApproximation#t} holds the residual demand <i>b - Bf</i>.
+     * @param flow <i>f</i>, the flow.
+     * @param gradient <i>&nabla;&phi;</i>, the potential gradient.
+     * @param demand <i>b</i>, the demand.
+     */
+    void prepare(GridFlow flow, GridFlow gradient, GridDemand demand){
+        // graph part: maxima first, s.t. each log-sum is shifted by its own maximum
+        double max_up = Double.NEGATIVE_INFINITY, max_down = Double.NEGATIVE_INFINITY, max_zero = Double.NEGATIVE_INFINITY;
+        for(int e = 0; e < flow.m; e++){
+            double f_e = flow.entries.get(e);
+            double s_e = Math.signum(gradient.entries.get(e));
+            signs.entries.set(e, s_e);
+            if(s_e == 0.){
+                max_zero = Math.max(max_zero, Math.abs(f_e));
+            } else {
+                max_up = Math.max(max_up, s_e * f_e);
+                max_down = Math.max(max_down, -s_e * f_e);
+            }
+        }
+        double sum_up = 0, sum_down = 0, sum_zero = 0;
+        for(int e = 0; e < flow.m; e++){
+            double f_e = flow.entries.get(e);
+            double s_e = signs.entries.get(e);
+            if(s_e == 0.){
+                sum_zero += Math.exp(f_e - max_zero) + Math.exp(-f_e - max_zero);
+            } else {
+                sum_up += Math.exp(s_e * f_e - max_up);
+                sum_down += Math.exp(-s_e * f_e - max_down);
+            }
+        }
+        // empty sums yield -Infinity, which vanishes in the log-sum-exp of potential(h)
+        log_up = max_up + Math.log(sum_up);
+        log_down = max_down + Math.log(sum_down);
+        log_zero = max_zero + Math.log(sum_zero);
+        // tree part: RBs
+        signs.calculateExcessFlows(scratch, ga.incidence());
+        ga.t.updateExcessFlows(scratch);
+        System.arraycopy(ga.t.gather_congestions(), 1, congestion_dir, 0, congestion_dir.length);
+        // tree part: R(b - Bf)
+        flow.calculateExcessFlows(scratch, ga.incidence());
+        GridDemand.subtract(demand, scratch, scratch);
+        ga.t.updateExcessFlows(scratch);
+        System.arraycopy(ga.t.gather_congestions(), 1, congestion, 0, congestion.length);
+        prepared = true;
+    }
+
+    /**
+     * Calculates <i>&phi;(f + h &#8729; s)</i> for the direction of the last {@link #prepare(GridFlow, GridFlow, GridDemand)}.
+     * The tree {@link GridApproximation#t} is not modified.
+     * @param h <i>h</i>, the step size.
+     * @return <i>&phi;(f + h &#8729; s)</i>.
+     */
+    double potential(double h){
+        double pot_graph = potential_graph(h);
+        double pot_tree = potential_tree(h, buffer);
+        ga.cpg = pot_graph;
+        ga.cpt = pot_tree;
+        return pot_graph + pot_tree;
+    }
+
+    /**
+     * Calculates <i>&phi;(f + h &#8729; s)</i> like {@link #potential(double)}, but with the given scratch buffer
+     * and without storing the parts of the potential in {@link GridApproximation#cpg} and {@link GridApproximation#cpt}.
+     * Hence, concurrent calls are safe as long as they use distinct buffers.
+     * @param h <i>h</i>, the step size.
+     * @param buffer Scratch buffer of at least the tree size, see {@link #worker_buffers(int)}.
+     * @return <i>&phi;(f + h &#8729; s)</i>.
+     */
+    double potential(double h, double[] buffer){
+        return potential_graph(h) + potential_tree(h, buffer);
+    }
+
+    /**
+     * Calculates the graph part <i>lmax(f + h &#8729; s)</i> of the potential.
+     * @param h <i>h</i>, the step size.
+     * @return <i>lmax(f + h &#8729; s)</i>.
+     */
+    double potential_graph(double h){
+        assert prepared;
+        // ln(e^h U + e^-h D + C) as stable log-sum-exp
+        double x_up = h + log_up, x_down = -h + log_down;
+        double max = Math.max(Math.max(x_up, x_down), log_zero);
+        return max + Math.log(Math.exp(x_up - max) + Math.exp(x_down - max) + Math.exp(log_zero - max));
+    }
+
+    /**
+     * Calculates the tree part <i>lmax(2&alpha;R(b - B(f + h &#8729; s)))</i> of the potential.
+     * @param h <i>h</i>, the step size.
+     * @param buffer Scratch buffer of at least the tree size for the congestions at the probe.
+     * @return <i>lmax(2&alpha;R(b - B(f + h &#8729; s)))</i>.
+     */
+    double potential_tree(double h, double[] buffer){
+        assert prepared;
+        // lmax(2 alpha (R(b - Bf) - h RBs)) with the default shift
+        int nodes = congestion.length;
+        double linf = 0.;
+        for(int i = 0; i < nodes; i++){
+            double c = congestion[i] - h * congestion_dir[i];
+            buffer[i] = c;
+            double abs = Math.abs(c);
+            if(abs > linf) linf = abs;
+        }
+        double alpha2 = 2*ga.t.getAlpha();
+        double shift = -alpha2*linf;
+        return Math.log(SoftmaxKernel.INSTANCE.sum_exp_sym(buffer, nodes, alpha2, shift)) - shift;
+    }
+
+    /**
+     * Returns at least <code>k</code> scratch buffers for concurrent calls of {@link #potential(double, double[])}.
+     * The buffers are allocated on first use and kept for the following calls.
+     * This method itself is not thread-safe; call it before the probes are distributed.
+     * @param k Number of concurrent probes.
+     * @return Array of at least <code>k</code> distinct buffers of the tree size.
+     */
+    double[][] worker_buffers(int k){
+        if(worker_buffers.length < k){
+            double[][] buffers = new double[k][];
+            System.arraycopy(worker_buffers, 0, buffers, 0, worker_buffers.length);
+            for(int i = worker_buffers.length; i < k; i++)
+                buffers[i] = new double[congestion.length];
+            worker_buffers = buffers;
+        }
+        return worker_buffers;
+    }
+
+    /**
+     * Calculates <i>&phi;(f + h &#8729; s)</i> and its first and second derivative in <i>h</i>,
+     * for the direction of the last {@link #prepare(GridFlow, GridFlow, GridDemand)}.
+     * With the weights <i>p<sub>i</sub><sup>&plusmn;</sup> = e<sup>&plusmn;x<sub>i</sub></sup> / &sum;<sub>j</sub>(e<sup>x<sub>j</sub></sup>+e<sup>-x<sub>j</sub></sup>)</i>
+     * of a softmax over the affine functions <i>x<sub>i</sub>(h)</i>, the derivatives are
+     * <i>lmax' = &sum;<sub>i</sub>(p<sub>i</sub><sup>+</sup>-p<sub>i</sub><sup>-</sup>)x<sub>i</sub>'</i> and
+     * <i>lmax'' = &sum;<sub>i</sub>(p<sub>i</sub><sup>+</sup>+p<sub>i</sub><sup>-</sup>)x<sub>i</sub>'<sup>2</sup> - lmax'<sup>2</sup></i>.
+     * The tree {@link GridApproximation#t} is not modified.
+     * @param h <i>h</i>, the step size.
+     * @return A triple of <i>&phi;(f + h &#8729; s)</i>, its first and its second derivative in <i>h</i>.
+     */
+    Triple<Double, Double, Double> potential_derivatives(double h){
+        assert prepared;
+        // graph part: the exponents are h + ln(U), -h + ln(D) and ln(C)
+        double x_up = h + log_up, x_down = -h + log_down;
+        double max = Math.max(Math.max(x_up, x_down), log_zero);
+        double p_up = Math.exp(x_up - max), p_down = Math.exp(x_down - max);
+        double sum = p_up + p_down + Math.exp(log_zero - max);
+        double pot_graph = max + Math.log(sum);
+        double d1 = (p_up - p_down) / sum;
+        double d2 = (p_up + p_down) / sum - d1*d1;
+        // tree part: the exponents are 2 alpha (R(b - Bf) - h RBs)_i
+        double alpha2 = 2*ga.t.getAlpha();
+        double linf = 0.;
+        for(int i = 0; i < buffer.length; i++){
+            double c = congestion[i] - h * congestion_dir[i];
+            buffer[i] = c;
+            double abs = Math.abs(c);
+            if(abs > linf) linf = abs;
+        }
+        double shift = -alpha2*linf;
+        // buffer[i] = e^(x_i + shift) - e^(-x_i + shift), whose sum of both terms follows from (e^a + e^b)^2 = (e^a - e^b)^2 + 4e^(a+b)
+        double sum_tree = SoftmaxKernel.INSTANCE.diff_exp_sym(buffer, buffer, buffer.length, alpha2, shift);
+        double product = 4*Math.exp(2*shift);
+        double d1_tree = 0, d2_tree = 0;
+        for(int i = 0; i < buffer.length; i++){
+            double dx = -alpha2 * congestion_dir[i];
+            d1_tree += buffer[i] * dx;
+            d2_tree += Math.sqrt(buffer[i]*buffer[i] + product) * dx * dx;
+        }
+        double pot_tree = Math.log(sum_tree) - shift;
+        d1_tree /= sum_tree;
+        d2_tree = d2_tree / sum_tree - d1_tree*d1_tree;
+        ga.cpg = pot_graph;
+        ga.cpt = pot_tree;
+        return new Triple<>(pot_graph + pot_tree, d1 + d1_tree, d2 + d2_tree);
+    }
+
+    /**
+     * Marks the precomputed quantities as outdated, e.g. after the flow has been updated.
+     */
+    void invalidate(){
+        prepared = false;
+    }
+
+    /**
+     * Hands the scratch buffers back to their allocator.
+     * The evaluator must not be used afterwards.
+     */
+    void release(){
+        scratch.release();
+        signs.release();
+    }
+}
@@ -0,0 +1,104 @@
+package grid_algorithm;
+
+/**
+ * Storage of the entries of a vector of doubles, i.e. of a {@link GridFlow} or a {@link GridDemand}.
+ * The storage is either backed by a Java array ({@link HeapStorage}) or by native memory outside of the
+ * Java heap ({@link OffHeapStorage}), and is always obtained from a {@link StorageAllocator}.
+ * New vectors derived from a vector (e.g. copies, scaled vectors or excess flows) are allocated
+ * by the allocator of the original vector, s.t. a whole computation stays on the same backend.
+ * @author Jonas Schulz
+ */
+abstract class DoubleStorage {
+
+    /**
+     * Returns the number of entries.
+     * @return Number of entries.
+     */
+    abstract int length();
+
+    /**
+     * Returns the entry at index <code>i</code>.
+     * @param i Index of the entry.
+     * @return The entry at index <code>i</code>.
+     */
+    abstract double get(int i);
+
+    /**
+     * Sets the entry at index <code>i</code>.
+     * @param i Index of the entry.
+     * @param value The new value.
+     */
+    abstract void set(int i, double value);
+
+    /**
+     * Adds <code>value</code> to the entry at index <code>i</code>.
+     * @param i Index of the entry.
+     * @param value Value to be added.
+     */
+    void add(int i, double value){
+        set(i, get(i) + value);
+    }
+
+    /**
+     * Sets all entries to <code>value</code>.
+     * @param value The new value of all entries.
+     */
+    abstract void fill(double value);
+
+    /**
+     * Copies all entries of <code>other</code> into this storage.
+     * @param other Storage of the same length.
+     */
+    void copyFrom(DoubleStorage other){
+        for(int i = 0; i < length(); i++){
+            set(i, other.get(i));
+        }
+    }
+
+    /**
+     * Copies all entries of this storage into a Java array.
+     * Backends that are not backed by an array override this with a bulk copy, s.t. array-backed storages
+     * can copy from any backend without depending on it, see {@link HeapStorage#copyFrom(DoubleStorage)}.
+     * @param out Array of the same length.
+     */
+    void copyTo(double[] out){
+        for(int i = 0; i < out.length; i++){
+            out[i] = get(i);
+        }
+    }
+
+    /**
+     * Returns the allocator this storage was obtained from.
+     * @return The allocator of this storage.
+     */
+    abstract StorageAllocator allocator();
+
+    /**
+     * Returns the backing array, iff this storage is backed by a Java array.
+     * Use this for fast paths of kernels that operate on arrays.
+     * @return The backing array, or <code>null</code> iff the storage is not backed by a Java array.
+     */
+    double[] array(){
+        return null;
+    }
+
+    /**
+     * Returns the entries as a new Java array.
+     * @return A copy of the entries.
+     */
+    double[] toArray(){
+        double[] a = new double[length()];
+        for(int i = 0; i < a.length; i++){
+            a[i] = get(i);
+        }
+        return a;
+    }
+
+    /**
+     * Hands this storage back to its allocator, which may reuse it for later allocations.
+     * The storage must not be used after calling this method.
+     */
+    void release(){
+        allocator().release(this);
+    }
+}
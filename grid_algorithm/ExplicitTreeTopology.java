@@ -0,0 +1,224 @@
+package grid_algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * {@link TreeTopology} stored in parallel arrays, with one entry per node in each of
+ * {@link #capacity}, {@link #child_offset}, {@link #parent}, {@link #vertex}, {@link #lower_bounds} and {@link #higher_bounds}.
+ * Supports all grids.
+ * @author Jonas Schulz
+ */
+class ExplicitTreeTopology implements TreeTopology {
+    /**
+     * Dimensionality of the grid.
+     */
+    final int d;
+    /**
+     * The policy the hypercubes are split by.
+     */
+    final SplitPolicy policy;
+    /**
+     * Number of nodes, including the root.
+     */
+    final int size;
+    /**
+     * Capacities of the hypercube cuts, per node. The capacity of the root is 0.
+     */
+    final int[] capacity;
+    /**
+     * The children of node i are the nodes <code>child_offset[i]</code> to <code>child_offset[i+1]-1</code>.
+     * Leaves have no children, i.e. <code>child_offset[i] == child_offset[i+1]</code>.
+     * The array has <code>size+1</code> entries.
+     */
+    final int[] child_offset;
+    /**
+     * Parent of each node, or -1 for the root.
+     */
+    final int[] parent;
+    /**
+     * The nodes of level l (the root has level 0) are the nodes <code>level_offset[l]</code> to <code>level_offset[l+1]-1</code>.
+     */
+    final int[] level_offset;
+    /**
+     * The graph vertex represented by each leaf, or -1 for inner nodes.
+     */
+    final int[] vertex;
+    /**
+     * The leaf of each graph vertex.
+     */
+    final int[] leaf;
+    /**
+     * Lower bounds of the hypercubes, <code>lower_bounds[i*d+k]</code> for node i and dimension k.
+     */
+    final int[] lower_bounds;
+    /**
+     * Higher bounds of the hypercubes, <code>higher_bounds[i*d+k]</code> for node i and dimension k.
+     */
+    final int[] higher_bounds;
+    /**
+     * Number of nodes per chunk of the parallel build.
+     */
+    static final int BUILD_CHUNK_SIZE = 1 << 12;
+
+    /**
+     * Standard constructor.
+     * Builds the tree with the splits of {@link GridGraph#split(int[], int[])} on the common fork-join pool,
+     * see {@link #ExplicitTreeTopology(GridGraph, SplitPolicy, ForkJoinPool)}.
+     * @param g The grid graph.
+     */
+    ExplicitTreeTopology(GridGraph g){
+        this(g, SplitPolicy.MIDPOINT);
+    }
+
+    /**
+     * Builds the tree with the given split policy on the common fork-join pool,
+     * see {@link #ExplicitTreeTopology(GridGraph, SplitPolicy, ForkJoinPool)}.
+     * @param g The grid graph.
+     * @param policy The policy the hypercubes are split by.
+     */
+    ExplicitTreeTopology(GridGraph g, SplitPolicy policy){
+        this(g, policy, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds the tree level by level from the hypercube splits of the policy, directly into the arrays.
+     * Each level takes two passes over its nodes: the first one counts the children of each node and determines the leaves,
+     * after which a prefix sum yields {@link #child_offset}; the second one writes the bounds, capacities and parents of the children.
+     * The passes are split into chunks of {@link #BUILD_CHUNK_SIZE} nodes, which run in parallel iff <code>pool</code> is set.
+     * The tree does not depend on the pool.
+     * @param g The grid graph.
+     * @param policy The policy the hypercubes are split by.
+     * @param pool The pool to build the tree on, or <code>null</code> to build it on the calling thread.
+     */
+    ExplicitTreeTopology(GridGraph g, SplitPolicy policy, ForkJoinPool pool){
+        this.d = g.getDim();
+        this.policy = policy;
+        int n = g.getN();
+        // each inner node has at least two children, thus there are less than 2N nodes
+        int max_size = 2*n - 1;
+        int[] child_offset = new int[max_size + 1];
+        int[] parent = new int[max_size];
+        int[] capacity = new int[max_size];
+        int[] vertex = new int[max_size];
+        int[] lower_bounds = new int[max_size*d];
+        int[] higher_bounds = new int[max_size*d];
+        this.leaf = new int[n];
+        for(int k = 0; k < d; k++){
+            higher_bounds[k] = g.nodesPerDim[k]-1;
+        }
+        parent[0] = -1;
+        ArrayList<Integer> levels = new ArrayList<>();
+        int begin = 0, end = 1;
+        while(begin < end){
+            levels.add(begin);
+            // first pass: count the children, and register the leaves
+            Chunks.run(pool, begin, end, BUILD_CHUNK_SIZE, (c, from, to) -> {
+                int[] lower = new int[d], higher = new int[d];
+                for(int i = from; i < to; i++){
+                    System.arraycopy(lower_bounds, i*d, lower, 0, d);
+                    System.arraycopy(higher_bounds, i*d, higher, 0, d);
+                    int count = policy.countSplits(lower, higher);
+                    child_offset[i] = count;
+                    vertex[i] = (count == 0) ? g.toIndex(lower) : -1;
+                    if(count == 0)
+                        leaf[vertex[i]] = i;
+                }
+            });
+            int next = end;
+            for(int i = begin; i < end; i++){
+                int count = child_offset[i];
+                child_offset[i] = next;
+                next += count;
+            }
+            // overwritten by the first pass of the next level
+            child_offset[end] = next;
+            // second pass: write the children
+            Chunks.run(pool, begin, end, BUILD_CHUNK_SIZE, (c, from, to) -> {
+                int[] lower = new int[d], higher = new int[d], split_lower = new int[d], split_higher = new int[d];
+                for(int i = from; i < to; i++){
+                    System.arraycopy(lower_bounds, i*d, lower, 0, d);
+                    System.arraycopy(higher_bounds, i*d, higher, 0, d);
+                    for(int ch = child_offset[i], s = 0; ch < child_offset[i+1]; ch++, s++){
+                        policy.split(lower, higher, s, split_lower, split_higher);
+                        System.arraycopy(split_lower, 0, lower_bounds, ch*d, d);
+                        System.arraycopy(split_higher, 0, higher_bounds, ch*d, d);
+                        capacity[ch] = g.capHyperBox(split_lower, split_higher);
+                        parent[ch] = i;
+                    }
+                }
+            });
+            begin = end;
+            end = next;
+        }
+        this.size = end;
+        this.level_offset = new int[levels.size() + 1];
+        for(int l = 0; l < levels.size(); l++){
+            level_offset[l] = levels.get(l);
+        }
+        level_offset[levels.size()] = size;
+        this.child_offset = (size == max_size) ? child_offset : Arrays.copyOf(child_offset, size + 1);
+        this.parent = (size == max_size) ? parent : Arrays.copyOf(parent, size);
+        this.capacity = (size == max_size) ? capacity : Arrays.copyOf(capacity, size);
+        this.vertex = (size == max_size) ? vertex : Arrays.copyOf(vertex, size);
+        this.lower_bounds = (size == max_size) ? lower_bounds : Arrays.copyOf(lower_bounds, size*d);
+        this.higher_bounds = (size == max_size) ? higher_bounds : Arrays.copyOf(higher_bounds, size*d);
+    }
+
+    @Override
+    public SplitPolicy policy(){
+        return policy;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public int levels(){
+        return level_offset.length - 1;
+    }
+
+    @Override
+    public int level_offset(int l){
+        return level_offset[l];
+    }
+
+    @Override
+    public int child_begin(int i){
+        return child_offset[i];
+    }
+
+    @Override
+    public int child_end(int i){
+        return child_offset[i+1];
+    }
+
+    @Override
+    public int parent(int i){
+        return parent[i];
+    }
+
+    @Override
+    public int vertex(int i){
+        return vertex[i];
+    }
+
+    @Override
+    public int leaf(int v){
+        return leaf[v];
+    }
+
+    @Override
+    public int capacity(int i){
+        return capacity[i];
+    }
+
+    @Override
+    public void bounds(int i, int[] lower, int[] higher){
+        System.arraycopy(lower_bounds, i*d, lower, 0, d);
+        System.arraycopy(higher_bounds, i*d, higher, 0, d);
+    }
+}
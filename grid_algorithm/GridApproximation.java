@@ -3,12 +3,14 @@ package grid_algorithm;
 import com.opencsv.CSVWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import project_utils.DoubleSequence;
+import project_utils.Triple;
 import project_utils.Tuple;
 
 /**
@@ -91,6 +93,18 @@ public class GridApproximation {
      * @param g The grid graph to operate on.
      */
     public GridApproximation(GridGraph g){
+        this(g, new GridApproximatorTree(g));
+    }
+    
+    /**
+     * Constructor for a prebuilt approximator, e.g. one whose topology is mapped from a snapshot,
+     * see {@link GridApproximatorTree#GridApproximatorTree(GridGraph, java.nio.file.Path)}.
+     * {@link #split_policy} and {@link #implicit_tree} are taken from its topology, s.t. the approximator is used as it is
+     * unless one of them is changed afterwards.
+     * @param g The grid graph to operate on.
+     * @param t The approximator of g.
+     */
+    public GridApproximation(GridGraph g, GridApproximatorTree t){
         // <editor-fold defaultstate="collapsed" desc="CSV Debug Initialization">
         debug_csv : {
             String subfolder = "";
@@ -106,7 +120,9 @@ public class GridApproximation {
         }
         // </editor-fold>
         this.g = g;
-        this.t = new GridApproximatorTree(g);
+        this.t = t;
+        this.split_policy = t.topology.policy();
+        this.implicit_tree = t.topology instanceof ImplicitTreeTopology;
     }
     
     /**
@@ -184,12 +200,93 @@ public class GridApproximation {
     boolean dynamic_opt_stepsize = true;
     /**
      * Sets the relative precision of the dynamic step size optimization.
+     * Iff {@link #adaptive_stepsize_precision} is set, this is the finest precision, which is used close to convergence.
      */
     double dynamic_opt_stepsize_precision = 0.001;
+    /**
+     * (De-)activates the adaptive precision of the dynamic step size optimization, see {@link #stepsize_precision(double, double)}.
+     */
+    boolean adaptive_stepsize_precision = true;
+    /**
+     * The coarsest relative precision of the dynamic step size optimization iff {@link #adaptive_stepsize_precision} is set.
+     */
+    double dynamic_opt_stepsize_precision_coarse = 0.05;
+    /**
+     * (De-)activates seeding the line search with the step size factor of the previous iteration, see {@link #last_stepsize_factor}.
+     */
+    boolean warm_start_stepsize = true;
+    /**
+     * The step size factor accepted by the last line search of the current solve, or <code>NaN</code> before the first line search.
+     */
+    double last_stepsize_factor = Double.NaN;
+    /**
+     * Number of potential evaluations of the current line search.
+     */
+    int line_search_probes = 0;
+    /**
+     * Number of potential evaluations of each line search of the last solve, in order of the iterations.
+     * Use this to compare the work of the line search variants.
+     */
+    ArrayList<Integer> line_search_probe_counts = new ArrayList<>();
     /**
      * Current iteration level.
      */
     int iterations = 0;
+    /**
+     * (De-)activates the off-heap storage of all flow, gradient and demand vectors during {@link #AlmostRoute(GridDemand, double)}.
+     * Iff <code>true</code>, the vectors of a solve are kept in an {@link OffHeapArena} that is closed at the end of the solve,
+     * which takes the vector data off the garbage collector for very large grids.
+     * The returned flow and gradient are copied back to the Java heap.
+     */
+    boolean off_heap = false;
+    /**
+     * Evaluator for the potential with preallocated buffers, used during {@link #AlmostRoute(GridDemand, double)}.
+     * It is <code>null</code> outside of a solve, in which case each evaluation allocates its own vectors.
+     */
+    ProbeEvaluator probes;
+    /**
+     * (De-)activates the evaluation of the line search probes along the search direction in time linear in the tree size,
+     * see {@link DirectionalPotential}. Iff <code>false</code>, each probe evaluates the potential on the whole graph.
+     */
+    boolean directional_line_search = true;
+    /**
+     * (De-)activates the parallel tree passes on the common fork-join pool, see {@link GridApproximatorTree#pool}.
+     * Results do not depend on this flag.
+     */
+    boolean parallel_tree = false;
+    /**
+     * (De-)activates the parallel incidence kernels <i>B &#8729; f</i> and <i>B<sup>T</sup> &#8729; p</i> on the common fork-join pool,
+     * see {@link IncidenceKernel#pool}. Results do not depend on this flag.
+     */
+    boolean parallel_incidence = false;
+    /**
+     * (De-)activates the probe that determines the block sizes of the incidence kernels for the cache of this machine, see {@link IncidenceKernel#tune(int, Chunks.ChunkAction)}.
+     * The probe runs once per kernel and operator, after the operator has been compiled, and only replaces the default block size by a clearly faster one.
+     * It is off by default, as the block size only matters for grids whose vectors exceed the last-level cache. Results do not depend on this flag.
+     */
+    boolean tune_incidence = false;
+    /**
+     * The incidence kernels with the settings of this instance, see {@link #incidence()}.
+     */
+    private IncidenceKernel incidence;
+    /**
+     * (De-)activates the implicit tree topology, see {@link ImplicitTreeTopology}, which calculates the structure of the tree on the fly
+     * and only stores the values of its nodes. Only takes effect iff all sides of the grid are powers of two.
+     * The approximator is rebuilt at the start of a solve iff this flag was changed, see {@link GridApproximatorTree#rebuild(SplitPolicy, boolean)}.
+     * Results do not depend on this flag.
+     */
+    boolean implicit_tree = false;
+    /**
+     * The policy the hypercubes of the approximator are split by, see {@link SplitPolicy}.
+     * {@link SplitPolicy#ASPECT_RATIO} keeps the hypercubes of anisotropic grids close to cubes.
+     * The approximator is rebuilt at the start of a solve iff this policy was changed, see {@link GridApproximatorTree#rebuild(SplitPolicy, boolean)}.
+     */
+    SplitPolicy split_policy = SplitPolicy.MIDPOINT;
+    /**
+     * Evaluator for the potential along the search direction, used during {@link #AlmostRoute(GridDemand, double)}.
+     * It is <code>null</code> outside of a solve.
+     */
+    DirectionalPotential directional;
     
     /**
      * Routes most part of b with relative precision &epsilon;.
@@ -200,12 +297,55 @@ public class GridApproximation {
      * @return A tuple of flow <i>f</i> and the gradient <i>&nabla;&phi;(f)</i>.
      */
     public Tuple<GridFlow, GridFlow> AlmostRoute(GridDemand b, double eps){
+        if(!off_heap)
+            return AlmostRoute(b, eps, StorageAllocator.HEAP);
+        try(OffHeapArena arena = new OffHeapArena()){
+            Tuple<GridFlow, GridFlow> result = AlmostRoute(b, eps, arena);
+            // the arena's memory is freed on return, so move the results to the heap
+            return new Tuple<>(result.a.copy(StorageAllocator.HEAP), result.b.copy(StorageAllocator.HEAP));
+        }
+    }
+    
+    /**
+     * Returns the incidence kernels with the settings {@link #parallel_incidence} and {@link #tune_incidence} of this instance.
+     * Without either setting, these are the shared kernels of the grid graph, see {@link GridGraph#incidence()};
+     * otherwise, this instance owns its kernels, s.t. its settings don't affect other solvers on the same grid graph.
+     * The kernels are kept, including their probed block sizes, until a setting is changed.
+     * @return The incidence kernels.
+     */
+    IncidenceKernel incidence(){
+        ForkJoinPool pool = parallel_incidence ? ForkJoinPool.commonPool() : null;
+        if(incidence == null || incidence.pool != pool || incidence.auto_tune != tune_incidence){
+            incidence = (pool == null && !tune_incidence) ? g.incidence() : new IncidenceKernel(g, pool, tune_incidence);
+        }
+        return incidence;
+    }
+
+    /**
+     * Same as {@link #AlmostRoute(GridDemand, double)}, but all vectors of the solve are allocated by <code>allocator</code>.
+     * @param b The demand to be routed.
+     * @param eps The relative precision &epsilon;.
+     * @param allocator Allocator for all flow, gradient and demand vectors of the solve, including the results.
+     * @return A tuple of flow <i>f</i> and the gradient <i>&nabla;&phi;(f)</i>.
+     */
+    Tuple<GridFlow, GridFlow> AlmostRoute(GridDemand b, double eps, StorageAllocator allocator){
         // initialization
+        // the settings start out as those of the approximator, so they only differ iff they were changed
+        boolean implicit = implicit_tree && ImplicitTreeTopology.supports(g);
+        if(implicit != (t.topology instanceof ImplicitTreeTopology) || split_policy != t.topology.policy()){
+            t = t.rebuild(split_policy, implicit);
+        }
         t.updateExcessFlows(b);
         double linf = t.linf_congestion();
         double s = ((16/eps)*Math.log(g.getN()))/(2*t.getAlpha()*linf);
-        b = b.scale(s);
+        b = b.copy(allocator).scale_inplace(s);
         currentScale = s;
+        t.pool = parallel_tree ? ForkJoinPool.commonPool() : null;
+        try {
+            probes = new ProbeEvaluator(this, allocator);
+            directional = new DirectionalPotential(this, allocator);
+            last_stepsize_factor = Double.NaN;
+            line_search_probe_counts.clear();
 //        try {
 //            fw.write(String.format("16/eps: %f\n",(16/eps)));
 //            fw.write(String.format("log(n): %f\n", Math.log(g.getN())));
@@ -218,38 +358,43 @@ public class GridApproximation {
 //        } catch (IOException ex) {
 //            Logger.getLogger(GridApproximation.class.getName()).log(Level.SEVERE, null, ex);
 //        }
-        GridFlow currentFlow = new GridFlow(g);
-        Tuple<GridFlow, GridFlow> iter_result;
-        double delta;
-        // iteration
-        do{
-            // [bullet 1] and pre-calculation phi, gradphi
+            GridFlow currentFlow = new GridFlow(g, allocator);
+            Tuple<GridFlow, GridFlow> iter_result = null;
+            double delta;
+            // iteration
+            do{
+                // the gradient of the last iteration is not used anymore
+                if(iter_result != null) iter_result.b.release();
+                // [bullet 1] and pre-calculation phi, gradphi
 //            System.out.println("Current Tree (before iter):");
 //            printTree(t);
-            iter_result = iteration(currentFlow, b, eps);
-            // [bullet 2] delta calculation
-            delta = iter_result.b.l1();
+                iter_result = iteration(currentFlow, b, eps);
+                // [bullet 2] delta calculation
+                delta = iter_result.b.l1();
 //            System.out.println("Current scale: "+this.currentScale);
-            // [bullet 3] update flow approximation
-            if(delta >= eps/4){
-                double val = (-1)*(delta/(1+4*t.getAlpha()*t.getAlpha()));
-                // scale step with stepSize (experimental):
-                if(dynamic_opt_stepsize)
-                    val *= optimize_stepsize(iter_result.a, iter_result.b, val, b, dynamic_opt_stepsize_precision);
-                else
-                    val *= stepSize.at(iterations);
-                for(Entry<Integer, Double> e : iter_result.b.entries.entrySet()){
-                    // capacity is 1 for all edges here
-//                    double val = -(delta/(1+4*t.getAlpha()*t.getAlpha()))*e.getValue();
-                    currentFlow.add(e.getKey(), val * Math.signum(e.getValue()));
+                // [bullet 3] update flow approximation
+                if(delta >= eps/4){
+                    double val = (-1)*(delta/(1+4*t.getAlpha()*t.getAlpha()));
+                    // scale step with stepSize (experimental):
+                    if(dynamic_opt_stepsize){
+                        line_search_probes = 0;
+                        val *= optimize_stepsize(iter_result.a, iter_result.b, val, b, stepsize_precision(delta, eps));
+                        line_search_probe_counts.add(line_search_probes);
+                    } else
+                        val *= stepSize.at(iterations);
+                    DoubleStorage gradient = iter_result.b.entries;
+                    for(int e = 0; e < gradient.length(); e++){
+                        // capacity is 1 for all edges here
+//                    double val = -(delta/(1+4*t.getAlpha()*t.getAlpha()))*gradient.get(e);
+                        currentFlow.entries.add(e, val * Math.signum(gradient.get(e)));
+                    }
                 }
-            }
 //            System.out.println("Linf residual: "+GridDemand.subtract(b, iter_result.a.calculateExcessFlows()).linf());
-            if(loopCheck(iter_result.b.l1())) break;
-            // just for information
-            iterations++;
+                if(loopCheck(iter_result.b.l1())) break;
+                // just for information
+                iterations++;
 //            System.out.println(String.format("Delta = %f", delta));
-            debug_csv : {
+                debug_csv : {
 //                if(iterations == 0){
 //                    System.out.println("Flow "+currentFlow.tikz2D());
 //                    System.out.println("");
@@ -272,15 +417,19 @@ public class GridApproximation {
 //                catch (IOException ex) {
 //                    Logger.getLogger(GridApproximation.class.getName()).log(Level.SEVERE, null, ex);
 //                }
-            }
+                }
 //            System.out.println("Iteration "+iterations+" finished.");
 //            System.out.println("  Current Scale: "+currentScale);
 //            System.out.println("  Current Delta: "+delta);
 //            System.out.println("  Current Gradient:\n"+iter_result.b.tikz2D());
-        } while (delta >= eps/4 && iterations < iterationLimit);
-        // return
-        iter_result.a = iter_result.a.scale(1./currentScale);
-        iter_result.b = iter_result.b.scale(1./currentScale);
+            } while (delta >= eps/4 && iterations < iterationLimit);
+            // return
+            GridFlow scaledFlow = iter_result.a, scaledGradient = iter_result.b;
+            iter_result.a = scaledFlow.scale(1./currentScale);
+            iter_result.b = scaledGradient.scale(1./currentScale);
+            scaledFlow.release();
+            scaledGradient.release();
+            b.release();
 //debug : {
 //    System.out.println("Scaled Demand:\\\\");
 //    boolean tmp = printTikz;
@@ -292,11 +441,11 @@ public class GridApproximation {
 //    printDemand(b);
 //    printTikz = tmp;
 //}
-        System.out.println("Total scaling: "+currentScale);
-        System.out.println("Stopped at iteration "+iterations);
+            System.out.println("Total scaling: "+currentScale);
+            System.out.println("Stopped at iteration "+iterations);
         
-        debug_csv : {
-            try {
+            debug_csv : {
+                try {
 //                fw.write(String.format("Number of Iterations: %d\n", iterations));
 //                fw.write("STOP==========================================\n");
 //                fw.write(String.format("scale: %f  ", currentScale));
@@ -307,15 +456,22 @@ public class GridApproximation {
 //                fw.write(String.format("gnorm (over flow grad): %f  ", this.grad_potential(currentFlow, b).l1()));
 //                fw.write(String.format("cutbound: %f  ", iter_result.a.calculateExcessFlows().l1()));
 //                fw.write(String.format("dembound: %f  ", args));
-                writer.flush();
-                iterationWriter.flush();
+                    writer.flush();
+                    iterationWriter.flush();
 //                fw.flush();
-            } catch (IOException ex) {
-                Logger.getLogger(GridApproximation.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (IOException ex) {
+                    Logger.getLogger(GridApproximation.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
-        }
         
-        return iter_result;
+            return iter_result;
+        } finally {
+            // also on exceptions, s.t. no later call evaluates probes on the vectors of this solve
+            if(probes != null) probes.release();
+            probes = null;
+            if(directional != null) directional.release();
+            directional = null;
+        }
     }
     
     /**
@@ -323,13 +479,56 @@ public class GridApproximation {
      * (<code>false</code>) in the dynamic step size optimization line search.
      */
     boolean golden_section_search = true;
+    /**
+     * Switches to the safeguarded Newton search ({@link #optimize_stepsize_newton(double, double)}) in the dynamic step size optimization line search.
+     * Iff <code>true</code>, this takes precedence over {@link #golden_section_search}.
+     */
+    boolean newton_line_search = false;
+    /**
+     * Switches to the parallel k-section search ({@link #optimize_stepsize_ksection(GridFlow, GridFlow, double, GridDemand, double, double, double)})
+     * in the dynamic step size optimization line search.
+     * Iff <code>true</code>, this takes precedence over {@link #golden_section_search}, but not over {@link #newton_line_search}.
+     */
+    boolean parallel_line_search = false;
+    /**
+     * The pool on which the probes of the parallel k-section search are evaluated.
+     */
+    ForkJoinPool line_search_pool = ForkJoinPool.commonPool();
+    /**
+     * Number <i>k</i> of probes per round of the parallel k-section search, at least 2.
+     * Defaults to the parallelism of {@link #line_search_pool}.
+     */
+    int line_search_k = Math.max(2, line_search_pool.getParallelism());
+    
+    /**
+     * Calculates the relative precision of the line search for the current iteration.
+     * Iff {@link #adaptive_stepsize_precision} is set, the precision is coarse as long as &delta; is far from the
+     * termination threshold &epsilon;/4, and is tightened proportionally to &delta; / (&epsilon;/4) until it reaches
+     * {@link #dynamic_opt_stepsize_precision} at termination. It is never coarser than {@link #dynamic_opt_stepsize_precision_coarse}.
+     * Otherwise, the precision is always {@link #dynamic_opt_stepsize_precision}.
+     * @param delta The current &delta;, i.e. &Vert;&nabla;&phi;(f)&Vert;<sub>1</sub>.
+     * @param eps The relative precision &epsilon; of the solve.
+     * @return The relative precision of the line search.
+     */
+    double stepsize_precision(double delta, double eps){
+        if(!adaptive_stepsize_precision)
+            return dynamic_opt_stepsize_precision;
+        double precision = dynamic_opt_stepsize_precision * delta / (eps/4);
+        return Math.min(precision, dynamic_opt_stepsize_precision_coarse);
+    }
     
     /**
      * Performs a line search to find the step size with the steepest gradient descent.
      * This method first determines the search interval, and then calls either
      * the golden section search ({@link #optimize_stepsize_gss(GridFlow, GridFlow, double, GridDemand, double, double, double)})
      * or the ternary search ({@link #optimize_stepsize_p4(GridFlow, GridFlow, double, GridDemand, double, double, double)}),
-     * depending on the {@link #golden_section_search} flag.
+     * depending on the {@link #golden_section_search} flag, or the parallel k-section search
+     * ({@link #optimize_stepsize_ksection(GridFlow, GridFlow, double, GridDemand, double, double, double)}) iff {@link #parallel_line_search} is set,
+     * or the safeguarded Newton search ({@link #optimize_stepsize_newton(double, double)}) iff {@link #newton_line_search} is set.
+     * Iff {@link #warm_start_stepsize} is set, the interval search starts around the factor of the last line search
+     * and may also shrink the interval, but never below the lower bound of a cold start.
+     * Iff {@link #directional_line_search} is set, the quantities of the search direction are precomputed once,
+     * s.t. each probe only costs time linear in the tree size.
      * @param flow Current flow.
      * @param gradient Current gradient.
      * @param std Standard step size.
@@ -338,36 +537,63 @@ public class GridApproximation {
      * @return The factor to multiply the standard step size with to obtain the optimum suggested by the line search.
      */
     double optimize_stepsize(GridFlow flow, GridFlow gradient, double std, GridDemand demand, double precision){
+        if(newton_line_search && directional != null){
+            directional.prepare(flow, gradient, demand);
+            double approx_min = optimize_stepsize_newton(std, precision);
+            directional.invalidate();
+            last_stepsize_factor = approx_min;
+            return approx_min;
+        }
+        if(directional_line_search && directional != null)
+            directional.prepare(flow, gradient, demand);
         double grow = 2.;
         // Initial search for interval with exponential grow
-        double factor0 = 0.25;
+        double min_factor = 0.25;
+        double factor0 = min_factor;
+        // warm start: center the initial interval at the last factor
+        if(warm_start_stepsize && last_stepsize_factor / grow > min_factor)
+            factor0 = last_stepsize_factor / grow;
         double factor1 = factor0 * grow;
         double factor2 = factor1 * grow;
-        double pot0 = potential(flow_f_plus_h_gradsignum(flow, factor0*std, gradient), demand);
-        double pot1 = potential(flow_f_plus_h_gradsignum(flow, factor1*std, gradient), demand);
-        double pot2 = potential(flow_f_plus_h_gradsignum(flow, factor2*std, gradient), demand);
+        double pot0 = potential_f_plus_h_gradsignum(flow, factor0*std, gradient, demand);
+        double pot1 = potential_f_plus_h_gradsignum(flow, factor1*std, gradient, demand);
+        double pot2 = potential_f_plus_h_gradsignum(flow, factor2*std, gradient, demand);
 //        String pots_str = "Interval search: ("+factor0+", "+pot0+") - ("
 //                + factor1+", "+pot1+")"+
 //                + factor2+", "+pot2+")";
+        // only after a warm start, the minimum might lie below the initial interval
+        while(pot0 < pot1 && factor0 / grow >= min_factor){
+            factor2 = factor1;
+            factor1 = factor0;
+            factor0 /= grow;
+            pot2 = pot1;
+            pot1 = pot0;
+            pot0 = potential_f_plus_h_gradsignum(flow, factor0*std, gradient, demand);
+        }
         while(pot1 > pot2){
             factor0 = factor1;
             factor1 = factor2;
             factor2 *= grow;
             pot0 = pot1;
             pot1 = pot2;
-            pot2 = potential(flow_f_plus_h_gradsignum(flow, factor2*std, gradient), demand);
+            pot2 = potential_f_plus_h_gradsignum(flow, factor2*std, gradient, demand);
 //            pots_str += " - ("+factor2+", "+pot2+")";
         }
         
         
         
-        double approx_min = golden_section_search ? 
+        double approx_min = parallel_line_search ?
+                optimize_stepsize_ksection(flow, gradient, std, demand, precision, factor0, factor2) :
+                golden_section_search ? 
                 optimize_stepsize_gss(flow, gradient, std, demand, precision, factor0, factor2) :
                 optimize_stepsize_p4(flow, gradient, std, demand, precision, factor0, factor2);
 //        System.out.println("Optimization step at iteration "+iterations+" with val="+std);
 //        System.out.println(pots_str);
 //        System.out.println(String.format("scale [%f, %f, %f, %f]",fi0,fi1,fi2,fi3));
 //        System.out.println(String.format("pots [%f, %f, %f, %f]",poti0,poti1,poti2,poti3));
+        if(directional != null)
+            directional.invalidate();
+        last_stepsize_factor = approx_min;
         return approx_min;
     }
     
@@ -392,8 +618,8 @@ public class GridApproximation {
 //        double poti0 = pot0;
 //        double poti1 = potential(flow_f_plus_h_grad(flow, fi1*std, gradient), demand);
 //        double poti1 = pot1;
-        double poti1 = potential(flow_f_plus_h_gradsignum(flow, fi1*std, gradient), demand);
-        double poti2 = potential(flow_f_plus_h_gradsignum(flow, fi2*std, gradient), demand);
+        double poti1 = potential_f_plus_h_gradsignum(flow, fi1*std, gradient, demand);
+        double poti2 = potential_f_plus_h_gradsignum(flow, fi2*std, gradient, demand);
 //        double poti3 = pot2;
         // order: fi0 < fi1 < fi2 < fi3
         while(Math.abs(poti2 - poti1) > Math.abs(precision * poti1)){
@@ -411,8 +637,8 @@ public class GridApproximation {
             // subdivide: same formulae for both cases
             fi1 = fi0 + (1/3.)*(fi3 - fi0);
             fi2 = fi0 + (2/3.)*(fi3 - fi0);
-            poti1 = potential(flow_f_plus_h_gradsignum(flow, fi1*std, gradient), demand);
-            poti2 = potential(flow_f_plus_h_gradsignum(flow, fi2*std, gradient), demand);
+            poti1 = potential_f_plus_h_gradsignum(flow, fi1*std, gradient, demand);
+            poti2 = potential_f_plus_h_gradsignum(flow, fi2*std, gradient, demand);
         }
         return poti1 < poti2 ? fi1 : fi2;
     }
@@ -444,8 +670,8 @@ public class GridApproximation {
         // for |I_(i+1)|=(1/gs)*|I_i|, we set:
         double x1 = x0 + inv_gs2 * h; // = x3 - inv_gs * h
         double x2 = x0 + inv_gs * h;
-        double y1 = potential(flow_f_plus_h_gradsignum(flow, x1*std, gradient),demand);
-        double y2 = potential(flow_f_plus_h_gradsignum(flow, x2*std, gradient),demand);
+        double y1 = potential_f_plus_h_gradsignum(flow, x1*std, gradient, demand);
+        double y2 = potential_f_plus_h_gradsignum(flow, x2*std, gradient, demand);
         
         while(Math.abs(y2-y1) > Math.abs(precision * y1)){
             if(y2 > y1){
@@ -460,7 +686,7 @@ public class GridApproximation {
                 h = x3 - x0;
                 // update point x1
                 x1 = x0 + inv_gs2 * h;
-                y1 = potential(flow_f_plus_h_gradsignum(flow, x1*std, gradient), demand);
+                y1 = potential_f_plus_h_gradsignum(flow, x1*std, gradient, demand);
             } else {
                 // minimum not in [x0, x1]
                 // shrink to interval [x1, x3]
@@ -473,13 +699,145 @@ public class GridApproximation {
                 h = x3 - x0;
                 // update point x2
                 x2 = x1 + inv_gs * h;
-                y2 = potential(flow_f_plus_h_gradsignum(flow, x2*std, gradient), demand);
+                y2 = potential_f_plus_h_gradsignum(flow, x2*std, gradient, demand);
             }
         }
         
         return y1 < y2 ? x1 : x2;
     }
     
+    /**
+     * Implements the k-section search.
+     * Each round evaluates <i>k</i> = {@link #line_search_k} equidistant interior points of the interval and shrinks
+     * the interval to the two neighbours of the best point, i.e. by a factor of <i>(k+1)/2</i>.
+     * For odd <i>k</i>, the best point is the midpoint of the next round, whose potential is reused instead of being probed again.
+     * Hence, a round takes one parallel step and shrinks the interval at least as fast as a bisection for <i>k</i> &ge; 3,
+     * whereas the golden section search shrinks it by a factor of 1.618 per sequential probe.
+     * <br>
+     * During a solve, the <i>k</i> probes of a round are evaluated concurrently on {@link #line_search_pool}:
+     * by {@link #directional} with one scratch buffer per probe iff it is prepared, and otherwise on the whole graph
+     * by one of the {@link ProbeEvaluator#workers(int)} per probe, which don't modify the approximator tree.
+     * Outside of a solve, they are evaluated one after another. Since every probe is evaluated independently, the result does not depend on the scheduling.
+     * <br>
+     * The search costs more probes than the golden section search, and its less regular step sizes have taken more iterations of the solve
+     * in experiments on 8x8 to 20x20 grids (e.g. 767 instead of 557 iterations for k = 3 on a 12x12 grid), so it only pays off
+     * with enough cores and expensive probes, and {@link #parallel_line_search} is off by default.
+     * The search stops when the best point differs from its evaluated neighbours by at most the relative precision,
+     * when the differences are not finite (e.g. for NaN potentials), or after {@link #ksection_round_limit} rounds.
+     * @param flow Current flow.
+     * @param gradient Current gradient.
+     * @param std Standard step size.
+     * @param demand Demanded excess flows.
+     * @param precision Relative precision of the line search.
+     * @param a Lower bound of the search interval.
+     * @param b Higher bound of the search interval.
+     * @return The factor to multiply the standard step size with to obtain the optimum suggested by the line search.
+     */
+    double optimize_stepsize_ksection(GridFlow flow, GridFlow gradient, double std, GridDemand demand, double precision, double a, double b){
+        int k = Math.max(2, line_search_k);
+        boolean along_direction = directional != null && directional.prepared;
+        boolean concurrent = along_direction || probes != null;
+        double[][] buffers = along_direction ? directional.worker_buffers(k) : null;
+        ProbeEvaluator[] workers = (concurrent && !along_direction) ? probes.workers(k) : null;
+        IncidenceKernel kernel = incidence();
+        // x[0] = a and x[k+1] = b are the bounds, x[1..k] the probes
+        double[] x = new double[k+2];
+        double[] y = new double[k+2];
+        // index of the probe whose potential is known from the last round, or 0 iff none
+        int known = 0;
+        double x_known = 0., y_known = 0.;
+        for(int round = 1; ; round++){
+            for(int i = 0; i <= k+1; i++)
+                x[i] = a + i * (b - a) / (k+1);
+            if(known > 0)
+                x[known] = x_known;
+            int skip = known;
+            if(concurrent){
+                // one chunk per probe
+                Chunks.run(line_search_pool, 1, k+1, 1, (c, i, to) -> {
+                    if(i == skip) return;
+                    y[i] = along_direction ? directional.potential(x[i]*std, buffers[i-1])
+                            : workers[i-1].potential(flow, x[i]*std, gradient, demand, kernel);
+                });
+                line_search_probes += (skip == 0) ? k : k-1;
+            } else {
+                for(int i = 1; i <= k; i++)
+                    if(i != skip)
+                        y[i] = potential_f_plus_h_gradsignum(flow, x[i]*std, gradient, demand);
+            }
+            if(known > 0)
+                y[known] = y_known;
+            int j = 1;
+            for(int i = 2; i <= k; i++)
+                if(y[i] < y[j]) j = i;
+            double diff = 0.;
+            if(j > 1) diff = Math.max(diff, Math.abs(y[j-1] - y[j]));
+            if(j < k) diff = Math.max(diff, Math.abs(y[j+1] - y[j]));
+            if(!Double.isFinite(diff) || diff <= Math.abs(precision * y[j]) || round >= ksection_round_limit)
+                return x[j];
+            a = x[j-1];
+            b = x[j+1];
+            // the new interval is centred at x[j], which is a probe of the next round iff k is odd
+            known = (k % 2 == 1) ? (k+1)/2 : 0;
+            x_known = x[j];
+            y_known = y[j];
+        }
+    }
+    
+    /**
+     * Limit for the rounds of {@link #optimize_stepsize_ksection(GridFlow, GridFlow, double, GridDemand, double, double, double)}.
+     */
+    int ksection_round_limit = 64;
+    
+    /**
+     * Limit for the steps of {@link #optimize_stepsize_newton(double, double)}, including the bracketing steps.
+     */
+    int newton_step_limit = 64;
+    
+    /**
+     * Implements the safeguarded Newton search.
+     * As <i>x &#8614; &phi;(f + x &#8729; std &#8729; sgn(&nabla;&phi;))</i> is convex, the sign of its derivative tells on which side of
+     * a factor the minimum lies. The search interval [0, b] is found by doubling b until the derivative is non-negative,
+     * starting at 1 (or at the last factor iff {@link #warm_start_stepsize} is set).
+     * Then, Newton steps are taken from the end of the interval, and each step shrinks the interval according to the sign of the derivative.
+     * Steps that leave the interval, or that are taken at non-positive curvature, are replaced by bisection.
+     * The search stops when a Newton step lands inside the interval and the decrease it predicts is within the relative precision of the potential.
+     * Requires {@link #directional} to be prepared for the current direction.
+     * @param std Standard step size.
+     * @param precision Relative precision of the line search.
+     * @return The factor to multiply the standard step size with to obtain the optimum suggested by the line search.
+     */
+    double optimize_stepsize_newton(double std, double precision){
+        double a = 0., x = (warm_start_stepsize && last_stepsize_factor > 0) ? last_stepsize_factor : 1.;
+        int steps = 1;
+        // derivatives in x are those in h, times std (resp. std^2)
+        Triple<Double, Double, Double> y = directional.potential_derivatives(x*std);
+        while(y.b * std < 0 && steps < newton_step_limit){
+            a = x;
+            x *= 2;
+            y = directional.potential_derivatives(x*std);
+            steps++;
+        }
+        double b = x;
+        while(steps < newton_step_limit){
+            double d1 = y.b * std, d2 = y.c * std * std;
+            if(d1 < 0) a = x;
+            else b = x;
+            double next = (d2 > 0) ? x - d1/d2 : Double.NaN;
+            boolean inside = next > a && next < b;
+            if(inside && 0.5*d1*d1/d2 <= Math.abs(precision * y.a)){
+                line_search_probes += steps;
+                return next;
+            }
+            // safeguard: bisection iff the Newton step does not land inside the interval
+            x = inside ? next : (a + b) / 2;
+            y = directional.potential_derivatives(x*std);
+            steps++;
+        }
+        line_search_probes += steps;
+        return x;
+    }
+    
     /**
      * Helper function to calculate the value of <i>f<sub>e</sub> + h &#8729; sgn(&nabla;&phi;<sub>e</sub>)</i> for all edges <i>e</i>.
      * @param flow <i>f</i>, the flow.
@@ -488,13 +846,46 @@ public class GridApproximation {
      * @return The flow with values <i>f<sub>e</sub> + h &#8729; sgn(&nabla;&phi;<sub>e</sub>)</i> at edges <i>e</i>.
      */
     GridFlow flow_f_plus_h_gradsignum(GridFlow flow, double h, GridFlow gradient){
-        GridFlow cflow = new GridFlow(flow, true);
-        for(Entry<Integer, Double> e : gradient.entries.entrySet()){
+        return flow_f_plus_h_gradsignum(flow, h, gradient, new GridFlow(flow, false));
+    }
+    
+    /**
+     * Same as {@link #flow_f_plus_h_gradsignum(GridFlow, double, GridFlow)}, but stores the result in <code>target</code>.
+     * @param flow <i>f</i>, the flow.
+     * @param h <i>h</i>, the step size.
+     * @param gradient <i>&nabla;&phi;</i>, the potential gradient.
+     * @param target {@link GridFlow} to store the results in. Its previous entries are overwritten.
+     * @return The flow with values <i>f<sub>e</sub> + h &#8729; sgn(&nabla;&phi;<sub>e</sub>)</i> at edges <i>e</i>, i.e. <code>target</code>.
+     */
+    GridFlow flow_f_plus_h_gradsignum(GridFlow flow, double h, GridFlow gradient, GridFlow target){
+        for(int e = 0; e < target.m; e++){
             // capacity is 1 for all edges here
-//                    double val = -(delta/(1+4*t.getAlpha()*t.getAlpha()))*e.getValue();
-            cflow.add(e.getKey(), h * Math.signum(e.getValue()));
+            target.entries.set(e, flow.entries.get(e) + h * Math.signum(gradient.entries.get(e)));
         }
-        return cflow;
+        return target;
+    }
+    
+    /**
+     * Calculates <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i>, i.e. the potential at a probe of the line search.
+     * During a solve, the probe is evaluated by {@link #directional} iff it has been prepared for this direction,
+     * and by {@link #probes} otherwise, both without any allocation.
+     * Otherwise, the probed flow is released after the evaluation.
+     * @param flow <i>f</i>, the flow.
+     * @param h <i>h</i>, the step size.
+     * @param gradient <i>&nabla;&phi;</i>, the potential gradient.
+     * @param demand <i>b</i>, the demand.
+     * @return <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i>.
+     */
+    double potential_f_plus_h_gradsignum(GridFlow flow, double h, GridFlow gradient, GridDemand demand){
+        line_search_probes++;
+        if(directional != null && directional.prepared)
+            return directional.potential(h);
+        if(probes != null)
+            return probes.potential(flow, h, gradient, demand);
+        GridFlow probe = flow_f_plus_h_gradsignum(flow, h, gradient);
+        double pot = potential(probe, demand);
+        probe.release();
+        return pot;
     }
     
     /**
@@ -552,7 +943,9 @@ public class GridApproximation {
     // part of the paper's "repeat" part, namely the scaling of f and b (bullet 1),
     // and the calculation of potential and potential gradient of f (to be used for other bullet points)
     Tuple<GridFlow, GridFlow> iteration(GridFlow currentFlow, GridDemand demand, double eps){
-        double pot = potential(currentFlow, demand);
+        // the graph potential comes with its gradient, s.t. the exponentials are not evaluated again for the gradient
+        Triple<Double, Double, GridFlow> lmax_graph = currentFlow.lmax_gradient_shifted();
+        double pot = potential(currentFlow, demand, lmax_graph.a);
 //        System.out.println("Pot @ "+iterations+" :   "+pot);
         double locScale = 1.;
 //        if(iterations % 50 == 0){
@@ -577,7 +970,9 @@ public class GridApproximation {
 //            } catch (IOException ex) {
 //                Logger.getLogger(GridApproximation.class.getName()).log(Level.SEVERE, null, ex);
 //            }
-            pot = potential(currentFlow, demand);
+            lmax_graph.c.release();
+            lmax_graph = currentFlow.lmax_gradient_shifted();
+            pot = potential(currentFlow, demand, lmax_graph.a);
 //            System.out.println("Scaling in iteration "+iterations);
 //            System.out.println("  Scale is now "+currentScale);
 //            System.out.println("  Potential is now "+pot);
@@ -603,7 +998,9 @@ public class GridApproximation {
 //                } catch (IOException ex) {
 //                    Logger.getLogger(GridApproximation.class.getName()).log(Level.SEVERE, null, ex);
 //                }
-                pot = potential(currentFlow, demand);
+                lmax_graph.c.release();
+                lmax_graph = currentFlow.lmax_gradient_shifted();
+                pot = potential(currentFlow, demand, lmax_graph.a);
             }
         }
         debug_csv : {
@@ -617,7 +1014,8 @@ public class GridApproximation {
 //        System.out.println("     >  Local Scale: "+locScale);
 //        System.out.println("     >  Total Scale: "+currentScale);
         // GridFlow grad_pot = new GridFlow(g);
-        GridFlow grad_potential = grad_potential(currentFlow, demand);
+        GridFlow grad_potential = grad_potential_from_graph_gradient(lmax_graph.c);
+        lmax_graph.c.release();
 //        System.out.println("Current Flow: ");
 //        printFlow(currentFlow);
 //        System.out.println("Current Gradient: ");
@@ -649,15 +1047,43 @@ public class GridApproximation {
 //        System.out.println(currentFlow);
 //        System.out.println("Given Demand: ");
 //        printDemand(demand);
-        GridDemand bf = currentFlow.calculateExcessFlows();
+        return potential(currentFlow, demand, currentFlow.lmax_shifted());
+    }
+    
+    /**
+     * Calculates <i>&phi;(f) = lmax(f) + lmax(2&alpha;R(b-Bf))</i>, with <i>lmax(f)</i> already given.
+     * Use this iff <i>lmax(f)</i> is known, e.g. from {@link GridFlow#lmax_gradient_shifted()}.
+     * @param currentFlow <i>f</i>.
+     * @param demand <i>b</i>.
+     * @param pot_graph <i>lmax(f)</i>.
+     * @return <i>&phi;(f)</i>.
+     */
+    double potential(GridFlow currentFlow, GridDemand demand, double pot_graph){
+        if(probes != null)
+            return probes.potential(currentFlow, demand, pot_graph);
+        GridDemand bf = currentFlow.calculateExcessFlows(new GridDemand(currentFlow), incidence());
 //        System.out.println("Calculated Excess Flows:");
 //        printDemand(bf);
         GridDemand residualDemand = GridDemand.subtract(demand, bf);
 //        System.out.println("Calculated Residual Demand: ");
 //        printDemand(residualDemand);
-        double pot_graph = currentFlow.lmax_shifted();
+        double pot = potential_residual(pot_graph, residualDemand);
+        bf.release();
+        residualDemand.release();
+        return pot;
+    }
+    
+    /**
+     * Calculates <i>&phi;(f) = lmax(f) + lmax(2&alpha;R(b-Bf))</i> from <i>lmax(f)</i> and the residual demand <i>b-Bf</i>.
+     * The residual demand is routed into the tree {@link #t}.
+     * @param pot_graph <i>lmax(f)</i>.
+     * @param residualDemand <i>b-Bf</i>.
+     * @return <i>&phi;(f)</i>.
+     */
+    double potential_residual(double pot_graph, GridDemand residualDemand){
         t.updateExcessFlows(residualDemand);
-        double pot_tree = t.lmax_shifted_2alpha_congestion();
+        // fused with the tree gradient, which is then cached for grad_potential_from_graph_gradient
+        double pot_tree = t.lmax_gradient_shifted_2alpha_congestion().a;
         this.cpt = pot_tree;
         this.cpg = pot_graph;
 //        System.out.println("Graph potential: "+pot_graph);
@@ -683,28 +1109,43 @@ public class GridApproximation {
          * Use a respective shift for the gradient graph potential to avoid numeric error
          */
         double shift_graph = -currentFlow.linf();
-        GridFlow grad_pot_graph = currentFlow.gradient_lmax_shifted(shift_graph);
-        double shift = t.getDefaultShift();
+        GridFlow grad_pot_graph = currentFlow.lmax_gradient_shifted(shift_graph).c;
+        GridFlow grad_pot = grad_potential_from_graph_gradient(grad_pot_graph);
+        grad_pot_graph.release();
+        return grad_pot;
+    }
+    
+    /**
+     * Calculates <i>&nabla;&phi;(f)</i> from its graph part <i>&nabla;lmax(f)</i>, i.e. adds the tree part
+     * <i>- 2&alpha;B<sup>T</sup>R<sup>T</sup>&nabla;lmax(2&alpha;R(b-Bf))</i>.
+     * The tree {@link #t} has to hold the residual demand <i>b-Bf</i>, which is the case after {@link #potential(GridFlow, GridDemand)}.
+     * @param grad_pot_graph <i>&nabla;lmax(f)</i>, e.g. from {@link GridFlow#lmax_gradient_shifted()}.
+     * @return <i>&nabla;&phi;(f)</i>.
+     */
+    GridFlow grad_potential_from_graph_gradient(GridFlow grad_pot_graph){
 //        System.out.println("Gradient (Graph): ");
 //        printFlow(grad_pot_graph);
 //        if(printToString) System.out.println(grad_pot_graph);
 //        if(printTikz) System.out.println(grad_pot_graph.tikz2D());
-        // shifting nominator and denominator with same shift cancels out
-        double s = -2*t.getAlpha()/t.lmax_exp_shifted_2alpha_congestion(shift);
+        // shifting nominator and denominator with same shift cancels out;
+        // the gradient terms are reused from the potential evaluation iff the tree still holds b-Bf
+        double s = -2*t.getAlpha()/t.lmax_gradient_shifted_2alpha_congestion().c;
 //        System.out.println("Scalar: "+s);
-        t.set_edge_gradient_shift_2alpha_potential(shift);
 //        System.out.println("Current Tree: ");
 //        printTree(t);
-        GridDemand rt_times_grad = t.mult_Rt_edge_gradient();
+        GridDemand rt_times_grad = t.mult_Rt_edge_gradient(new GridDemand(g, grad_pot_graph.entries.allocator()));
 //        System.out.println("R^T * Gradient: ");
 //        printDemand(rt_times_grad);
-        GridFlow bt_rt_grad = rt_times_grad.toPotentialDiffEdgesFlow();
+        GridFlow bt_rt_grad = rt_times_grad.toPotentialDiffEdgesFlow(incidence());
 //        System.out.println("B^T * R^T * Grad: ");
 //        printFlow(bt_rt_grad);
         GridFlow grad_pot_tree = bt_rt_grad.scale(s);
 //        System.out.println("Gradient (Tree) (-2 alpha / sum(exp(2 alpha R (b - Bf)))) * B^T * R^T * Grad:");
 //        printFlow(grad_pot_tree);
         GridFlow grad_pot = GridFlow.add(grad_pot_graph, grad_pot_tree);
+        rt_times_grad.release();
+        bt_rt_grad.release();
+        grad_pot_tree.release();
 //        System.out.println("Total Gradient:");
 //        printFlow(grad_pot);
 //        if(iterations == 1){
@@ -792,11 +1233,11 @@ public class GridApproximation {
             //System.out.println("Current scale: "+this.currentScale);
             // [bullet 3] update flow approximation
             if(delta >= eps/4){
-                for(Entry<Integer, Double> e : iter_result.b.entries.entrySet()){
+                for(int e = 0; e < currentFlow.m; e++){
                     // capacity is 1 for all edges here
-                    double val = (-1)*(delta/(1+4*t.getAlpha()*t.getAlpha()))*Math.signum(e.getValue());
-//                    double val = -(delta/(1+4*t.getAlpha()*t.getAlpha()))*e.getValue();
-                    currentFlow.add(e.getKey(), val);
+                    double val = (-1)*(delta/(1+4*t.getAlpha()*t.getAlpha()))*Math.signum(iter_result.b.entries.get(e));
+//                    double val = -(delta/(1+4*t.getAlpha()*t.getAlpha()))*iter_result.b.entries.get(e);
+                    currentFlow.entries.add(e, val);
                 }
             }
             // just for information
@@ -1,8 +1,12 @@
 package grid_algorithm;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import project_utils.Triple;
 
 import org.scilab.forge.jlatexmath.TeXConstants;
 import org.scilab.forge.jlatexmath.TeXFormula;
@@ -10,22 +14,95 @@ import org.scilab.forge.jlatexmath.TeXFormula;
 /**
  * This class represents the approximator for the grid graphs defined in {@link GridGraph}.
  * <br>
- * The approximator is modelled as a tree.
+ * The approximator is modelled as a tree. The structure of the tree is given by its {@link #topology}, which numbers the nodes
+ * in level order (breadth-first), and the values of the nodes are stored flat in the parallel arrays {@link #excess}, {@link #gradient}
+ * and {@link #congestion}, with one entry per node.
+ * The root has index 0, and the children of each node are numbered contiguously after all nodes of the previous levels.
+ * Hence, each parent has a smaller index than its children, and all traversals are loops over the arrays:
+ * bottom-up traversals run backwards, top-down traversals run forwards.
+ * <br>
+ * For grids whose sides are all powers of two, the topology can be calculated on the fly by {@link ImplicitTreeTopology}
+ * instead of being stored by {@link ExplicitTreeTopology}, see {@link #GridApproximatorTree(GridGraph, boolean)}.
+ * <br>
+ * Each node can be interpreted as a hypercube cut of the original graph.
+ * Given a demand <i>b</i>, the optimal congestion of a flow that satisfies <i>b</i>
+ * can not be better than b<sub>C</sub>/c<sub>C</sub>, where C is a cut, c<sub>C</sub> its capacity and
+ * b<sub>C</sub> the sum of all <i>b<sub>i</sub></i> for the vertices <i>i</i> in C.
+ * This is the metric represented in each (Rb)<sub>i</sub>, and each node except the root calculates one of those metrics.
  * @author Jonas Schulz
  */
 public class GridApproximatorTree {
-    /**
-     * Reference to the root node.
-     */
-    Node root;
     /**
      * The {@link GridGraph} related to this approximator.
      */
     GridGraph g;
     /**
-     * Number of edges in the tree graph visualization.
+     * Number of edges in the tree graph visualization, i.e. the number of nodes except the root.
      */
     int m;
+    /**
+     * Number of nodes, including the root.
+     */
+    int size;
+    /**
+     * The structure of the tree, i.e. the children, parents, capacities and hypercubes of the nodes.
+     */
+    final TreeTopology topology;
+    /**
+     * Current excess flows of the hypercubes, per node.
+     * The excess flows have to be updated via {@link #updateExcessFlows(GridDemand)}.
+     * The congestion approximation at a node i, (Rb)<sub>i</sub>, directly can be read via <code>(excess[i]/topology.capacity(i))</code>.
+     */
+    double[] excess;
+    /**
+     * Current values to be used for <i>&nabla;lmax(2&alpha;Rb)</i>, per node.
+     * The gradient has to be updated via {@link #set_edge_gradient_2alpha_potential()}, {@link #set_edge_gradient_shift_2alpha_potential()} or
+     * {@link #set_edge_gradient_shift_2alpha_potential(double)}. Doing so will set the gradient according to <code>b</code> from the last call of
+     * {@link #updateExcessFlows(GridDemand)}.
+     */
+    double[] gradient;
+    /**
+     * Congestions (Rb)<sub>i</sub>, per node. The entry of the root is unused and always 0,
+     * s.t. the entries 1 to <code>size-1</code> are the entries of Rb. The congestions are updated by {@link #updateExcessFlows(GridDemand)}.
+     */
+    double[] congestion;
+    /**
+     * &Vert;Rb&Vert;<sub>&infin;</sub>, updated by {@link #updateExcessFlows(GridDemand)}.
+     * Only valid iff {@link #congestion_linf_current} is set; use {@link #linf_congestion()} to read it.
+     */
+    double congestion_linf;
+    /**
+     * Whether {@link #congestion_linf} is up to date. Delta updates only mark it as outdated,
+     * s.t. the maximum is recomputed once when it is needed.
+     */
+    boolean congestion_linf_current = false;
+    /**
+     * Number of delta updates since the last full update, see {@link #updateExcessFlows(int[], double[], int)}.
+     */
+    int delta_updates = 0;
+    /**
+     * Number of delta updates after which the inner excess flows are recomputed from the leaves,
+     * which bounds the rounding errors accumulated by the delta updates.
+     */
+    int resync_interval = 64;
+    /**
+     * Whether {@link #gradient} holds the shifted gradient terms with the default shift for the current excess flows,
+     * see {@link #lmax_gradient_shifted_2alpha_congestion()}.
+     */
+    boolean gradient_current = false;
+    /**
+     * <i>lmax(2&alpha;Rb)</i> of the last {@link #lmax_gradient_shifted_2alpha_congestion()}.
+     */
+    double gradient_lmax;
+    /**
+     * Sum &sum;<sub>i</sub> e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup> + e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>
+     * of the last {@link #lmax_gradient_shifted_2alpha_congestion()}.
+     */
+    double gradient_sum;
+    /**
+     * Scratch buffer with one entry per node, used for the top-down pass of {@link #add_edge_gradients_to_incident_node_excesses(GridDemand)}.
+     */
+    double[] push_buffer;
     
     /**
      * An upper limit of the relative estimation error, as maximum ratio of the optimal congestion of b to &Vert; Rb &Vert;<sub>&infin;</sub> for all demands b.
@@ -36,20 +113,198 @@ public class GridApproximatorTree {
      * This parameter can be adjusted with further empiric data.
      */
     double alpha = 3.;
+    /**
+     * The pool on which the tree passes run in parallel, or <code>null</code> to run them on the calling thread.
+     * See {@link #for_chunks(int, int, Chunks.ChunkAction)}.
+     */
+    ForkJoinPool pool = null;
+    /**
+     * Number of nodes per chunk of the tree passes, see {@link #for_chunks(int, int, Chunks.ChunkAction)}.
+     * Ranges of at most this size are not split, which is the cutoff of the parallelization.
+     * Sums are added up per chunk and then in chunk order, so results depend on the chunk size, but not on the pool.
+     */
+    int chunk_size = 1 << 13;
+    /**
+     * Partial results of the chunks, see {@link #for_chunks(int, int, Chunks.ChunkAction)}.
+     */
+    double[] partials;
     
     /**
      * Standard constructor.
+     * Builds the tree level by level from the hypercube splits of {@link GridGraph#split(int[], int[])}, see {@link ExplicitTreeTopology}.
      * @param g The {@link GridGraph} related to this tree.
      */
     public GridApproximatorTree(GridGraph g){
-        int[] lower = new int[g.getDim()], higher = new int[g.getDim()];
-        for(int i = 0; i < g.getDim(); i++){
-            lower[i] = 0;
-            higher[i] = g.nodesPerDim[i]-1;
-        }
-        root = new Node(g, lower, higher, this);
-        this.m = root.m;
+        this(g, false);
+    }
+    
+    /**
+     * Constructor with the choice of the topology, see {@link #GridApproximatorTree(GridGraph, SplitPolicy, boolean)}.
+     * @param g The {@link GridGraph} related to this tree.
+     * @param implicit Whether to calculate the topology on the fly iff all sides of g are powers of two.
+     */
+    public GridApproximatorTree(GridGraph g, boolean implicit){
+        this(g, SplitPolicy.MIDPOINT, implicit);
+    }
+    
+    /**
+     * Constructor with the choice of the split policy and the topology, see {@link TreeTopology#of(GridGraph, SplitPolicy, boolean)}.
+     * The implicit topology only stores the values of the nodes, which saves the memory of the structure for huge grids,
+     * but each access to the structure is calculated on the fly. Grids that do not support it fall back to the explicit topology.
+     * @param g The {@link GridGraph} related to this tree.
+     * @param policy The policy the hypercubes are split by, e.g. {@link SplitPolicy#ASPECT_RATIO} for anisotropic grids.
+     * @param implicit Whether to calculate the topology on the fly iff all sides of g are powers of two.
+     */
+    public GridApproximatorTree(GridGraph g, SplitPolicy policy, boolean implicit){
+        this(g, TreeTopology.of(g, policy, implicit));
+    }
+    
+    /**
+     * Constructor with the topology from a snapshot, see {@link #GridApproximatorTree(GridGraph, SplitPolicy, Path)}.
+     * @param g The {@link GridGraph} related to this tree.
+     * @param snapshot_directory Directory of the snapshots.
+     * @throws IOException iff the snapshot can not be read or written.
+     */
+    public GridApproximatorTree(GridGraph g, Path snapshot_directory) throws IOException {
+        this(g, SplitPolicy.MIDPOINT, snapshot_directory);
+    }
+    
+    /**
+     * Constructor with the topology from a snapshot, see {@link MappedTreeTopology#snapshot(GridGraph, SplitPolicy, Path)}.
+     * The snapshot is mapped into memory instead of building the tree, and it is written first iff it does not exist yet.
+     * @param g The {@link GridGraph} related to this tree.
+     * @param policy The policy the hypercubes are split by.
+     * @param snapshot_directory Directory of the snapshots.
+     * @throws IOException iff the snapshot can not be read or written.
+     */
+    public GridApproximatorTree(GridGraph g, SplitPolicy policy, Path snapshot_directory) throws IOException {
+        this(g, MappedTreeTopology.snapshot(g, policy, snapshot_directory));
+    }
+    
+    /**
+     * Constructor for a given topology.
+     * @param g The {@link GridGraph} related to this tree.
+     * @param topology The topology of the approximator tree of g.
+     */
+    GridApproximatorTree(GridGraph g, TreeTopology topology){
         this.g = g;
+        this.topology = topology;
+        this.size = topology.size();
+        this.m = size - 1;
+        this.excess = new double[size];
+        this.gradient = new double[size];
+        this.congestion = new double[size];
+        this.push_buffer = new double[size];
+        this.partials = new double[(size + chunk_size - 1) / chunk_size];
+    }
+    
+    /**
+     * Creates an approximator of the same grid with another topology, which keeps the settings of this one,
+     * i.e. {@link #alpha}, {@link #pool}, {@link #chunk_size} and {@link #resync_interval}.
+     * The values of the nodes are not copied; they are recalculated by the next {@link #updateExcessFlows(GridDemand)}.
+     * @param policy The policy the hypercubes are split by.
+     * @param implicit Whether to calculate the topology on the fly iff all sides of the grid are powers of two.
+     * @return The new approximator.
+     */
+    GridApproximatorTree rebuild(SplitPolicy policy, boolean implicit){
+        GridApproximatorTree tree = new GridApproximatorTree(g, policy, implicit);
+        tree.alpha = alpha;
+        tree.pool = pool;
+        tree.chunk_size = chunk_size;
+        tree.resync_interval = resync_interval;
+        return tree;
+    }
+    
+    /**
+     * Splits the nodes <code>from</code> to <code>to-1</code> into chunks of {@link #chunk_size} nodes and runs the action on each chunk.
+     * Iff {@link #pool} is set and there is more than one chunk, the chunks are processed in parallel on the pool, see {@link Chunks}.
+     * The chunk boundaries do not depend on the pool, and each chunk may store its result in {@link #partials} at its chunk index.
+     * @param from First node.
+     * @param to Node after the last node.
+     * @param action The action for each chunk.
+     * @return The number of chunks.
+     */
+    int for_chunks(int from, int to, Chunks.ChunkAction action){
+        int chunks = (to - from + chunk_size - 1) / chunk_size;
+        if(partials.length < chunks)
+            partials = new double[chunks];
+        return Chunks.run(pool, from, to, chunk_size, action);
+    }
+    
+    /**
+     * Adds up the first <code>chunks</code> entries of {@link #partials} in order.
+     * @param chunks Number of chunks.
+     * @return The sum.
+     */
+    private double sum_partials(int chunks){
+        double sum = 0;
+        for(int c = 0; c < chunks; c++){
+            sum += partials[c];
+        }
+        return sum;
+    }
+    
+    /**
+     * Returns the maximum of the first <code>chunks</code> entries of {@link #partials}.
+     * @param chunks Number of chunks.
+     * @return The maximum, at least 0.
+     */
+    private double max_partials(int chunks){
+        double max = 0;
+        for(int c = 0; c < chunks; c++){
+            if(partials[c] > max) max = partials[c];
+        }
+        return max;
+    }
+    
+    /**
+     * Returns whether node i is a leaf. A leaf represents only a single vertex.
+     * @param i The node.
+     * @return <code>true</code> iff node i is a leaf.
+     */
+    boolean isLeaf(int i){
+        return topology.child_begin(i) == topology.child_end(i);
+    }
+    
+    /**
+     * Returns the lower bounds of the hypercube of node i.
+     * @param i The node.
+     * @return A copy of the lower bounds.
+     */
+    int[] lower(int i){
+        int d = g.getDim();
+        int[] lower = new int[d];
+        topology.bounds(i, lower, new int[d]);
+        return lower;
+    }
+    
+    /**
+     * Returns the higher bounds of the hypercube of node i.
+     * @param i The node.
+     * @return A copy of the higher bounds.
+     */
+    int[] higher(int i){
+        int d = g.getDim();
+        int[] higher = new int[d];
+        topology.bounds(i, new int[d], higher);
+        return higher;
+    }
+    
+    /**
+     * Returns the number of levels, i.e. the height of the tree plus one.
+     * @return The number of levels.
+     */
+    int levels(){
+        return topology.levels();
+    }
+    
+    /**
+     * Returns the congestions (Rb)<sub>i</sub> of all nodes, where the entries 1 to <code>size-1</code> form Rb.
+     * They are already gathered by {@link #updateExcessFlows(GridDemand)}; do not modify the returned array.
+     * @return {@link #congestion}.
+     */
+    double[] gather_congestions(){
+        return congestion;
     }
     
     /**
@@ -66,10 +321,134 @@ public class GridApproximatorTree {
     
     /**
      * Updates b for the evaluations related to Rb.
-     * @param b Demand to be routed into the approximator.
+     * Sets the leaves to the given excess flows b and calculates the excess flows of higher-level hypercube cuts
+     * of the graph bottom-up, that is, the inner nodes of this tree structure.
+     * The same pass stores the congestions in {@link #congestion} and their maximum in {@link #congestion_linf}.
+     * @param b Demand to be routed into the approximator. Note that you often want to route some residual demand here, i.e. <i>(b-Bf)</i>.
      */
     public void updateExcessFlows(GridDemand b){
-        root.updateExcessFlows(b);
+        DoubleStorage demand = b.entries;
+        double linf = 0.;
+        // bottom-up, level by level: all children of a level are in the levels below
+        for(int l = levels() - 1; l >= 0; l--){
+            int level = l;
+            int chunks = for_chunks(topology.level_offset(l), topology.level_offset(l+1), (c, from, to) -> {
+                double max = 0.;
+                for(int i = from; i < to; i++){
+                    int c0 = topology.child_begin(i, level), c1 = topology.child_end(i, level);
+                    if(c0 == c1){
+                        excess[i] = demand.get(topology.vertex(i, level));
+                    } else {
+                        double sum = 0;
+                        for(int k = c0; k < c1; k++){
+                            sum += excess[k];
+                        }
+                        excess[i] = sum;
+                    }
+                    if(i > 0){
+                        double cong = excess[i] / topology.capacity(i, level);
+                        congestion[i] = cong;
+                        double abs = Math.abs(cong);
+                        if(abs > max) max = abs;
+                    }
+                }
+                partials[c] = max;
+            });
+            linf = Math.max(linf, max_partials(chunks));
+        }
+        congestion_linf = linf;
+        congestion_linf_current = true;
+        gradient_current = false;
+        delta_updates = 0;
+    }
+    
+    /**
+     * Updates b for the evaluations related to Rb, with b given by its summed-area table.
+     * Each excess flow is calculated independently as a box sum in O(2<sup>d</sup>) time, without any traversal of the tree.
+     * Note that the box sums carry larger rounding errors than the sums of {@link #updateExcessFlows(GridDemand)}, see {@link SummedAreaTable}.
+     * @param sat Summed-area table of the demand to be routed into the approximator.
+     */
+    public void updateExcessFlows(SummedAreaTable sat){
+        int d = g.getDim();
+        double linf = 0.;
+        for(int l = 0; l < levels(); l++){
+            int level = l;
+            int chunks = for_chunks(topology.level_offset(l), topology.level_offset(l+1), (c, from, to) -> {
+                int[] lower = new int[d], higher = new int[d];
+                double max = 0.;
+                for(int i = from; i < to; i++){
+                    topology.bounds(i, level, lower, higher);
+                    excess[i] = sat.box_sum(lower, higher);
+                    if(i > 0){
+                        double cong = excess[i] / topology.capacity(i, level);
+                        congestion[i] = cong;
+                        double abs = Math.abs(cong);
+                        if(abs > max) max = abs;
+                    }
+                }
+                partials[c] = max;
+            });
+            linf = Math.max(linf, max_partials(chunks));
+        }
+        congestion_linf = linf;
+        congestion_linf_current = true;
+        gradient_current = false;
+        delta_updates = 0;
+    }
+    
+    /**
+     * Updates b for the evaluations related to Rb, where b differs from the last demand only at the given vertices.
+     * For each changed vertex, the difference to its old value is added to the excess flows of its leaf and all ancestors,
+     * which takes <i>O(k &#8729; height)</i> time for <i>k</i> changed vertices instead of the time linear in the tree size
+     * of {@link #updateExcessFlows(GridDemand)}.
+     * As the differences accumulate rounding errors in the inner nodes, every {@link #resync_interval}-th delta update
+     * recomputes the inner excess flows from the leaves instead, see {@link #resync()}.
+     * @param vertices The changed vertices. Vertices may occur multiple times; the last value counts.
+     * @param values The new demands of the changed vertices.
+     * @param count Number of changed vertices to be used, starting at index 0.
+     */
+    public void updateExcessFlows(int[] vertices, double[] values, int count){
+        for(int j = 0; j < count; j++){
+            int i = topology.leaf(vertices[j]);
+            double delta = values[j] - excess[i];
+            if(delta == 0.) continue;
+            excess[i] = values[j];
+            // walk up the ancestor chain; the root has no congestion
+            while(true){
+                if(i > 0) congestion[i] = excess[i] / topology.capacity(i);
+                i = topology.parent(i);
+                if(i < 0) break;
+                excess[i] += delta;
+            }
+        }
+        congestion_linf_current = false;
+        gradient_current = false;
+        if(++delta_updates >= resync_interval)
+            resync();
+    }
+    
+    /**
+     * Recomputes the excess flows and congestions of all inner nodes bottom-up from the excess flows of the leaves,
+     * discarding the rounding errors accumulated by delta updates.
+     */
+    public void resync(){
+        for(int l = levels() - 1; l >= 0; l--){
+            for(int i = topology.level_offset(l+1) - 1; i >= topology.level_offset(l); i--){
+                int c0 = topology.child_begin(i, l), c1 = topology.child_end(i, l);
+                if(c0 != c1){
+                    double sum = 0;
+                    for(int c = c0; c < c1; c++){
+                        sum += excess[c];
+                    }
+                    excess[i] = sum;
+                }
+                if(i > 0)
+                    congestion[i] = excess[i] / topology.capacity(i, l);
+            }
+        }
+        congestion_linf_current = false;
+        gradient_current = false;
+        delta_updates = 0;
     }
     
     /**
@@ -78,7 +457,7 @@ public class GridApproximatorTree {
      * @return <i>lmax(2&alpha;Rb)</i>.
      */
     public double lmax_2alpha_congestion(){
-        return Math.log(root.lmax_exp_2alpha_congestion());
+        return Math.log(lmax_exp_2alpha_congestion());
     }
     
     /**
@@ -87,7 +466,58 @@ public class GridApproximatorTree {
      * @return &sum;<sub>i</sub> e<sup>(2&alpha;Rb)<sub>i</sub></sup> + e<sup>-(2&alpha;Rb)<sub>i</sub></sup>.
      */
     public double lmax_exp_2alpha_congestion(){
-        return root.lmax_exp_2alpha_congestion();
+        double sum = 0;
+        for(int i = 1; i < size; i++){
+            double exp = Math.exp(2*getAlpha() * congestion[i]);
+            sum += exp + (1./exp);
+        }
+        return sum;
+    }
+    
+    /**
+     * Calculates <i>lmax(2&alpha;Rb)</i> with the default shift, like {@link #updateExcessFlows(GridDemand)} followed by {@link #lmax_shifted_2alpha_congestion()},
+     * but without modifying this approximator: the excess flows and then the congestions are calculated in the given scratch buffer.
+     * Hence, concurrent calls are safe as long as they use distinct buffers, e.g. for the probes of a parallel line search.
+     * The passes run on the calling thread regardless of {@link #pool}, but the sum is added up in the chunks of {@link #chunk_size}.
+     * @param b Demand to be routed into the approximator.
+     * @param scratch Scratch buffer with at least one entry per node.
+     * @return <i>lmax(2&alpha;Rb)</i>.
+     */
+    double lmax_shifted_2alpha_congestion(GridDemand b, double[] scratch){
+        DoubleStorage demand = b.entries;
+        // bottom-up: excess flows
+        for(int l = levels() - 1; l >= 0; l--){
+            for(int i = topology.level_offset(l); i < topology.level_offset(l+1); i++){
+                int c0 = topology.child_begin(i, l), c1 = topology.child_end(i, l);
+                if(c0 == c1){
+                    scratch[i] = demand.get(topology.vertex(i, l));
+                } else {
+                    double sum = 0;
+                    for(int k = c0; k < c1; k++){
+                        sum += scratch[k];
+                    }
+                    scratch[i] = sum;
+                }
+            }
+        }
+        // congestions, once all excess flows are known
+        double linf = 0.;
+        scratch[0] = 0.;
+        for(int l = 1; l < levels(); l++){
+            for(int i = topology.level_offset(l); i < topology.level_offset(l+1); i++){
+                double cong = scratch[i] / topology.capacity(i, l);
+                scratch[i] = cong;
+                double abs = Math.abs(cong);
+                if(abs > linf) linf = abs;
+            }
+        }
+        double s = 2*getAlpha();
+        double shift = -s*linf;
+        double sum = 0;
+        for(int from = 1; from < size; from += chunk_size){
+            sum += SoftmaxKernel.INSTANCE.sum_exp_sym(scratch, from, Math.min(size, from + chunk_size), s, shift);
+        }
+        return Math.log(sum) - shift;
     }
     
     /**
@@ -120,351 +550,35 @@ public class GridApproximatorTree {
     /**
      * Calculates e<sup><i>lmax</i>(2&alpha;Rb) + <code>shift</code></sup> = &sum;<sub>i</sub> e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup> + e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>.
      * This version uses shifted exponents, according to the parameter <code>shift</code>.
+     * The congestions are gathered into an array and summed up by {@link SoftmaxKernel#INSTANCE}.
      * @param shift The shift to be <b>added</b> to all exponents.
      * @return &sum;<sub>i</sub> e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup> + e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>.
      */
     public double lmax_exp_shifted_2alpha_congestion(double shift){
-        return root.lmax_exp_shifted_2alpha_congestion(shift);
-    }
-    
-    /**
-     * This inner class represents a node of the approximator tree structure.<br>
-     * Each node can be interpreted as a hypercube cut of the original graph.
-     * Given a demand <i>b</i>, the optimal congestion of a flow that satisfies <i>b</i>
-     * can not be better than b<sub>C</sub>/c<sub>C</sub>, where C is a cut, c<sub>C</sub> its capacity and
-     * b<sub>C</sub> the sum of all <i>b<sub>i</sub></i> for the vertices <i>i</i> in C.
-     * This is the metric represented in each (Rb)<sub>i</sub>, and each node calculates one of those metrics.
-     */
-    static class Node {
-        /**
-         * Lower bounds of the hypercube.
-         */
-        int[] lowerIndices;
-        /**
-         * Higher bounds of the hypercube.
-         */
-        int[] higherIndices;
-        /**
-         * Capacity of the hypercube cut.
-         * The hypercube is defined by {@link #lowerIndices} and {@link #higherIndices}.
-         */
-        int capacity_cut;
-        /**
-         * Current excess flow of this hypercube.
-         * The hypercube is defined by {@link #lowerIndices} and {@link #higherIndices}.
-         * The excess flow has to be updated via {@link #updateExcessFlows(GridDemand b)}.
-         */
-        double current_excess_flow;
-        /**
-         * The children of this {@link Node} represent the hypercube splits from {@link GridGraph#split(int[], int[])}.
-         * If this {@link Node} represents a single hypercube, children is {@code null}.
-         */
-        Node[] children;
-        /**
-         * Reference to the parent node. Currently not in use.
-         */
-        Node parent;
-        /**
-         * Current value to be used for <i>&nabla;lmax(2&alpha;Rb)</i>.
-         * The gradient has to be updated via {@link #set_edge_gradient_2alpha_potential()}, {@link #set_edge_gradient_shift_2alpha_potential()} or
-         * {@link #set_edge_gradient_shift_2alpha_potential(double)}. Doing so will set the gradient according to <code>b</code> from the last call of 
-         * {@link #updateExcessFlows(GridDemand)}.
-         */
-        double current_edge_grad;
-        /**
-         * The {@link GridApproximatorTree} object maintaining the tree structure with this {@link Node}.
-         */
-        GridApproximatorTree T;
-        /**
-         * The number of edges in the subtree where this node is the root.
-         */
-        int m;
-
-        /**
-         * Recursive constructor.
-         * @param g The grid graph on which the approximator operates.
-         * @param lowerIndices Lower bounds of the hypercube represented by this node.
-         * @param higherIndices Higher bounds of the hypercube represented by this node.
-         * @param tree {@link GridApproximatorTree} object of the tree in which this node lies.
-         */
-        public Node(GridGraph g, int[] lowerIndices, int[] higherIndices, GridApproximatorTree tree){
-            this.lowerIndices = lowerIndices;
-            this.higherIndices = higherIndices;
-            this.capacity_cut = g.capHyperBox(lowerIndices, higherIndices);
-            int dif = g.different(lowerIndices, higherIndices);
-            this.T = tree;
-            this.m = 0;
-            if(dif == 0){
-                this.children = null;
-            } else {
-                int[][][] splits = g.split(lowerIndices, higherIndices);
-                this.children = new Node[splits.length];
-                for(int i = 0; i < splits.length; i++){
-                    children[i] = new Node(g, splits[i][0], splits[i][1], T);
-                    children[i].parent = Node.this;
-                    this.m += 1 + children[i].m;
-                }
-            }
-            this.current_excess_flow = 0;
-        }
-
-        /**
-         * Standard setter for {@link #current_excess_flow}.
-         * @param current_excess_flow New value for {@link #current_excess_flow}.
-         */
-        public void setCurrent_excess_flow(double current_excess_flow) {
-            this.current_excess_flow = current_excess_flow;
-        }
-        
-        /**
-         * Returns whether this node is a leaf. A leaf represents only a single vertex.
-         * @return <code>true</code> iff this node is a leaf.
-         */
-        public boolean isLeaf(){
-            return children == null;
-        }
-        
-        /**
-         * Returns whether this node is the root of {@link #T}.
-         * The root represents the whole graph, and thus has no entry in Rb.
-         * @return <code>true</code> iff this node is the root of {@link #T}.
-         */
-        public boolean isRoot(){
-            return this.capacity_cut == 0;
-        }
-        
-        /**
-         * Sets the leaves to the given excess flows b and recursively (post-order) calculates the
-         * excess flows of higher-level hypercube cuts of the graph, that is, the inner
-         * nodes of this tree structure.
-         * The congestion approximation at a node v, (Rb)<sub>v</sub>, directly can be read via 
-         * <code>(v.current_excess_flow/v.capacity_cut)</code>.
-         * @param b Demand to be routed into R. Note that you often want to route some residual demand here, i.e. <i>(b-Bf)</i>.
-         * @return Excess flow of this subtree, for recursive use.
-         */
-        public double updateExcessFlows(GridDemand b){
-            if(isLeaf()){
-                // int index = T.g.toIndex(lowerIndices);
-                this.current_excess_flow = b.get(lowerIndices);
-            } else {
-                double sum = 0;
-                for(Node n : children){
-                    sum += n.updateExcessFlows(b);
-                }
-                this.current_excess_flow = sum;
-            }
-            return this.current_excess_flow;
-        }
-        
-        /**
-         * Calculates e<sup>lmax(2&alpha;Rb)</sup> for the parts of R and b in this sub-tree.
-         * The concrete calculation is &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub></sup>).
-         * Set b via updateExcessFlows(b).
-         * The exponent level is kept to optimize calculation efficiency.
-         * To get lmax(2&alpha;Rb), simply pipe this result in Math.log or
-         * use the {@link #lmax_2alpha_congestion()}, {@link #lmax_shifted_2alpha_congestion()} or {@link #lmax_shifted_2alpha_congestion(double)}
-         * methods of {@link #T}.
-         * @return &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub></sup>).
-         */
-        public double lmax_exp_2alpha_congestion(){
-            double sum = 0;
-            if(!isRoot()){
-                double cong = this.current_excess_flow / this.capacity_cut;
-                cong *= 2*T.getAlpha();
-                double exp = Math.exp(cong);
-                sum += exp + (1./exp);
-            }
-            if(!isLeaf()){
-                for(Node n : children){
-                    sum += n.lmax_exp_2alpha_congestion();
-                }
-            }
-            return sum;
-        }
-        
-        /**
-         * Similar to {@link #lmax_exp_2alpha_congestion()}, but with a shift to avoid numeric instability.
-         * Actual calculation is &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub> + <code>shift</code></sup>+exp<sup>-(2&alpha;Rb)<sub>i</sub> + <code>shift</code></sup>).<br>
-         * This yields e<sup>lmax(2&alpha;Rb)+<code>shift</code></sup>.
-         * @param shift Shift to be <b>added</b> to the exponents.
-         * @return &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub> + <code>shift</code></sup>+exp<sup>-(2&alpha;Rb)<sub>i</sub> + <code>shift</code></sup>).
-         */
-        public double lmax_exp_shifted_2alpha_congestion(double shift){
-            double sum = 0;
-            if(!isRoot()){
-                double cong = this.current_excess_flow / this.capacity_cut;
-                cong *= 2*T.getAlpha();
-                double exp = Math.exp(cong + shift);
-                sum += exp + Math.exp((-cong) + shift);
-            }
-            if(!isLeaf()){
-                for(Node n : children){
-                    sum += n.lmax_exp_shifted_2alpha_congestion(shift);
-                }
-            }
-            return sum;
-        }
-
-        /**
-         * Calculates <i>&sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub></sup>)&#8729;&nabla;lmax(2&alpha;Rb)<sub>j</sub></i> for the respective j of this node.
-         * The concrete calculation is (e<sup>(2&alpha;Rb)<sub>j</sub></sup>-e<sup>-(2&alpha;Rb)<sub>j</sub></sup>).<br>
-         * Set b via {@link #updateExcessFlows(GridDemand b)}.
-         * The term <i>&sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub></sup>)</i> evaluates to the same
-         * value for all j. Hence, some linear maps on <i>&nabla;lmax</i> can be accelerated by postponing this factorization.<br>
-         * The actual gradient is currently never used directly; this method implicitly stores it inside this object, whereas other
-         * functions involving the gradient (e.g. <i>l<sub>&infin;</sub></i>) are implemented in this class and return the respective concrete mathematical objects.
-         */
-        public void set_edge_gradient_2alpha_potential_rec(){
-            // only calculating the non-constant term e^xj - e^(-xj)
-            if(!isRoot()){
-                double exp = Math.exp(2*T.getAlpha()*this.current_excess_flow / this.capacity_cut);
-                this.current_edge_grad = exp - (1./exp);
-            }
-            if(!isLeaf()){
-                for(Node n : children){
-                    n.set_edge_gradient_2alpha_potential_rec();
-                }
-            }
-        }
-        /**
-         * Same as {@link #set_edge_gradient_2alpha_potential_rec()}, but using shifts for the exponents
-         * to prevent numeric overflows.
-         * @param shift The shift to be <b>added</b> to all exponents.
-         */
-        public void set_edge_gradient_shift_2alpha_potential_rec(double shift){
-            // only calculating the non-constant term e^xj - e^(-xj)
-            if(!isRoot()){
-                double a2c = 2*T.getAlpha()*this.current_excess_flow / this.capacity_cut;
-                double exp = Math.exp(a2c + shift);
-                double exp2 = Math.exp((-a2c) + shift);
-                this.current_edge_grad = exp - exp2;
-            }
-            if(!isLeaf()){
-                for(Node n : children){
-                    n.set_edge_gradient_shift_2alpha_potential_rec(shift);
-                }
-            }
-        }
-        
-        /**
-         * Calculates this node's contribution to <i>R<sup>T</sup>&#8729; &nabla;lmax(2&alpha;Rb)</i>,
-         * as it can be expressed as <i>&sum;<sub>i</sub> (g<sub>i</sub> / c<sub>i</sub>)</i> &#8729; I<sub>i</sub>, where
-         * <ul>
-         * <li><i>g<sub>i</sub></i> is the gradient for node i,</li>
-         * <li><i>c<sub>i</sub></i> is the capacity of the cut represented by node i and</li>
-         * <li><i>I<sub>i</sub></i> is the incidence vector for node <i>i</i> (i.e., (1,0,0,1) iff graph nodes 1 and 4 are in this box).</li>
-         * </ul>
-         * This method recursively calls all children, s.t. calling the root node will store <i>R<sup>T</sup>&#8729; &nabla;lmax(2&alpha;Rb)</i> in <code>d</code>.
-         * @param d {@link GridDemand} to store the results in.
-         */
-        public void add_edge_gradients_to_incident_node_excesses_v2(GridDemand d){
-            if(!isRoot()){
-                int[] indices = T.g.indicesOfBoxNodes(lowerIndices, higherIndices);
-                for(int i : indices){
-                    d.add(i, current_edge_grad/this.capacity_cut);
-                }
-            }
-            if(!isLeaf()){
-                for(Node n : children){
-                    n.add_edge_gradients_to_incident_node_excesses_v2(d);
-                }
-            }
-        }
-        
-        /**
-         * {@inheritDoc } 
-         */
-        @Override
-        public String toString() {
-            return leadingWhitespaceString(0);
-        }
-        
-        /**
-         * Implements functionality of the {@link #toString()} method.
-         * Recursively constructs the string representing this whole subtree.
-         * @param whitespaces Extra whitespace indent per subtree depth.
-         * @return String representation of this subtree to be embedded into the whole tree string representation.
-         */
-        private String leadingWhitespaceString(int whitespaces){
-            String lws = "";
-            for(int i = 0; i < whitespaces; i++){ lws += " "; }
-            String s = lws + (isLeaf() ? "Leaf:\n" : "Node:\n");
-            s += lws + "Lower Indices: "+Arrays.toString(lowerIndices)+"\n";
-            s += lws + "Higher Indices: "+Arrays.toString(higherIndices)+"\n";
-            s += lws + "Capacity: "+capacity_cut+"\n";
-            s += lws + "Current Excess Flow: "+current_excess_flow+"\n";
-            s += lws + "Current Gradient: "+this.current_edge_grad+"\n";
-            if(!isLeaf()){
-                for(Node n : children){
-                    s += n.leadingWhitespaceString(whitespaces + 4);
-                }
-            }
-            return s;
-        }
-
-        /**
-         * Calculates the <i>l<sub>&infin;</sub></i>-norm of Rb.
-         * @return &Vert;Rb&Vert;<sub>&infin;</sub>
-         */
-        double linf_congestion() {
-            double max = 0.;
-            if(!isRoot()){
-                max = Math.abs(current_excess_flow / capacity_cut);
-            }
-            if(!isLeaf()){
-                for(Node n : children){
-                    double d = n.linf_congestion();
-                    if(d > max)
-                        max = d;
-                }
-            }
-            return max;
-        }
-
-        /**
-         * Returns the height of this subtree.
-         * @return The height of this subtree. Leaves have height 0.
-         */
-        int height(){
-            if(isLeaf()) return 0;
-            int max = 0;
-            for(Node n : children){
-                if(n.height() > max) max = n.height();
-            }
-            return 1 + max;
-        }
-        
-        /**
-        * Returns TikZ-input for a visual representation of this subtree, including the current values of <i>lmax(2&alpha;Rb)</i> and <i>&nabla;lmax(2&alpha;Rb)</i>.<br>
-        * @param xpos x-position of this node. Recursive calls adjust this parameter with the volume of the respective hypercube represented by each child.
-        * @return TikZ input for an extended visual representation of this subtree.
-        */
-        private String tikz2D(double xpos) {
-            int yscale = 4;
-            int ypos = yscale*height();
-            DecimalFormat df = new DecimalFormat("#.0000");
-            DecimalFormat gf = new DecimalFormat("#0.##E0");
-//            int xpos = T.g.volume(lowerIndices, higherIndices)/2;
-//            xpos += T.g.toIndex(lowerIndices);
-            String s = "";
-            String ns = isLeaf() ? ""+T.g.toIndex(lowerIndices) : "";
-            s += "\\node[roundnode, minimum size = 0.9cm] at ("+(xpos+T.g.volume(lowerIndices, higherIndices)/2.)+", "+ypos+") ("+((int)xpos)+"h"+ypos+") {"+ns+"};\n";
-            if(!isLeaf()){
-                double sum = xpos;
-                for(Node n : children){
-                    String col = (n.current_excess_flow == 0.) ? "black!20" : "black";
-                    String colGrad = (n.current_edge_grad == 0.) ? "red!20" : "red";
-                    String colEdge = (n.current_excess_flow == 0.) ? "black!20" : "blue!40";
-                    s += n.tikz2D(sum + T.g.volume(n.lowerIndices, n.higherIndices)/2.);
-                    s += String.format("\\draw[thick, ->, color=%s] (",colEdge)+(int)xpos+"h"+ypos+") -- ("+((int)(sum + T.g.volume(n.lowerIndices, n.higherIndices)/2.))+"h"+(yscale*n.height())+")"
-                            + String.format(" node[sloped,midway,above=-0.1cm] {\\textcolor{%s}{%s/%d}, \\textcolor{%s}{%s}}", col, df.format(n.current_excess_flow), n.capacity_cut, colGrad, gf.format(n.current_edge_grad)) + ";\n";
-                    sum += T.g.volume(n.lowerIndices, n.higherIndices);
-                }
-            }
-            return s;
+        double s = 2*getAlpha();
+        int chunks = for_chunks(1, size, (c, from, to) -> partials[c] = SoftmaxKernel.INSTANCE.sum_exp_sym(congestion, from, to, s, shift));
+        return sum_partials(chunks);
+    }
+    
+    /**
+     * Fused evaluation of <i>lmax(2&alpha;Rb)</i> and its gradient with the default shift, see {@link #getDefaultShift()}.
+     * A single pass over the exponentials yields both the sum of <i>lmax</i> and the gradient terms of all nodes,
+     * which are stored in {@link #gradient} as by {@link #set_edge_gradient_shift_2alpha_potential()}.
+     * The results are cached until the next {@link #updateExcessFlows(GridDemand)}, s.t. repeated calls do not evaluate any exponentials.
+     * @return A triple of <i>lmax(2&alpha;Rb)</i>, &Vert;Rb&Vert;<sub>&infin;</sub> and the shifted sum
+     * <i>sh<sub>b</sub> = &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>)</i>,
+     * i.e. the normalization of the stored gradient terms.
+     */
+    Triple<Double, Double, Double> lmax_gradient_shifted_2alpha_congestion(){
+        if(!gradient_current){
+            double shift = getDefaultShift();
+            gradient_sum = set_edge_gradient_shift_sum(shift);
+            gradient_lmax = Math.log(gradient_sum) - shift;
+            gradient_current = true;
         }
+        return new Triple<>(gradient_lmax, linf_congestion(), gradient_sum);
     }
-
+    
     /**
      * {@inheritDoc }
      */
@@ -473,21 +587,47 @@ public class GridApproximatorTree {
         String s = "";
         s += ("Grid Dimensions: "+Arrays.toString(g.nodesPerDim)) + "\n";
         s += ("Root:") + "\n";
-        s += (root) + "\n";
+        s += leadingWhitespaceString(0, 0) + "\n";
+        return s;
+    }
+    
+    /**
+     * Implements functionality of the {@link #toString()} method.
+     * Recursively constructs the string representing the subtree of node i.
+     * @param i Root of the subtree.
+     * @param whitespaces Extra whitespace indent per subtree depth.
+     * @return String representation of this subtree to be embedded into the whole tree string representation.
+     */
+    private String leadingWhitespaceString(int i, int whitespaces){
+        String lws = "";
+        for(int k = 0; k < whitespaces; k++){ lws += " "; }
+        String s = lws + (isLeaf(i) ? "Leaf:\n" : "Node:\n");
+        s += lws + "Lower Indices: "+Arrays.toString(lower(i))+"\n";
+        s += lws + "Higher Indices: "+Arrays.toString(higher(i))+"\n";
+        s += lws + "Capacity: "+topology.capacity(i)+"\n";
+        s += lws + "Current Excess Flow: "+excess[i]+"\n";
+        s += lws + "Current Gradient: "+gradient[i]+"\n";
+        for(int c = topology.child_begin(i); c < topology.child_end(i); c++){
+            s += leadingWhitespaceString(c, whitespaces + 4);
+        }
         return s;
     }
     
     /** 
      * Calculate <i>&sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub></sup>)&#8729;&nabla;lmax(2&alpha;Rb)</i> as gradient of tree edges,
      * see the calculation in [She13] of <i>p<sub>2</sub> = &nabla;lmax(x<sub>2</sub>)</i> with <i>x<sub>2</sub> = 2&alpha; &#8729; R (b - Bf)</i>.
-     * For more implementation details, see the documentation of {@link Node#set_edge_gradient_2alpha_potential_rec() }.
+     * Only the non-constant term (e<sup>(2&alpha;Rb)<sub>j</sub></sup>-e<sup>-(2&alpha;Rb)<sub>j</sub></sup>) is stored in {@link #gradient} for each node j.
      * The <i>1/(&sum;<sub>i</sub>e<sup>(2&alpha;Rb)<sub>i</sub></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub></sup>)</i> part is omitted, as there are only linear 
      * operations, thus this scalar can be factored out, postponing the multiplication and evaluation.
      */
     public void set_edge_gradient_2alpha_potential(){
         // if not factoring out, add following line:
-        // double expsum = root.lmax_exp_2alpha_congestion();
-        root.set_edge_gradient_2alpha_potential_rec();
+        // double expsum = lmax_exp_2alpha_congestion();
+        gradient_current = false;
+        for(int i = 1; i < size; i++){
+            double exp = Math.exp(2*getAlpha()*congestion[i]);
+            gradient[i] = exp - (1./exp);
+        }
     }
     
     /**
@@ -495,10 +635,23 @@ public class GridApproximatorTree {
      * The concrete formula is then <i>&sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>)&#8729;&nabla;lmax<sub><code>shift</code></sub>(2&alpha;Rb)</i>
      * with <i>(&nabla;lmax<sub><code>shift</code></sub>(2&alpha;Rb))<sub>j</sub> = (e<sup>(2&alpha;Rb)<sub>j</sub>+<code>shift</code></sup> - e<sup>-(2&alpha;Rb)<sub>j</sub>+<code>shift</code></sup>)
      *  / &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>)</i>.
+     * The gradient terms of all nodes are calculated by {@link SoftmaxKernel#INSTANCE} from the congestions directly into {@link #gradient}.
      * @param shift 
      */
     public void set_edge_gradient_shift_2alpha_potential(double shift){
-        root.set_edge_gradient_shift_2alpha_potential_rec(shift);
+        set_edge_gradient_shift_sum(shift);
+        gradient_current = false;
+    }
+    
+    /**
+     * Implements {@link #set_edge_gradient_shift_2alpha_potential(double)}, and returns the sum of <i>lmax</i> on the way.
+     * @param shift The shift to be <b>added</b> to all exponents.
+     * @return &sum;<sub>i</sub>(e<sup>(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>+e<sup>-(2&alpha;Rb)<sub>i</sub>+<code>shift</code></sup>).
+     */
+    private double set_edge_gradient_shift_sum(double shift){
+        double s = 2*getAlpha();
+        int chunks = for_chunks(1, size, (c, from, to) -> partials[c] = SoftmaxKernel.INSTANCE.diff_exp_sym(congestion, gradient, from, to, s, shift));
+        return sum_partials(chunks);
     }
     
     /**
@@ -521,10 +674,53 @@ public class GridApproximatorTree {
      */
     public GridDemand mult_Rt_edge_gradient(){
         GridDemand d = new GridDemand(this.g);
-        root.add_edge_gradients_to_incident_node_excesses_v2(d);
+        add_edge_gradients_to_incident_node_excesses(d);
         return d;
     }
     
+    /**
+     * Same as {@link #mult_Rt_edge_gradient()}, but stores the result in <code>target</code>.
+     * Use this to choose the storage of the result, e.g. an off-heap demand of an {@link OffHeapArena}.
+     * @param target {@link GridDemand} to store the results in. Its previous entries are overwritten.
+     * @return <code>target</code>.
+     */
+    GridDemand mult_Rt_edge_gradient(GridDemand target){
+        target.entries.fill(0.);
+        add_edge_gradients_to_incident_node_excesses(target);
+        return target;
+    }
+    
+    /**
+     * Adds <i>R<sup>T</sup>&#8729; &nabla;lmax(2&alpha;Rb)</i> to <code>d</code>,
+     * as it can be expressed as <i>&sum;<sub>i</sub> (g<sub>i</sub> / c<sub>i</sub>)</i> &#8729; I<sub>i</sub>, where
+     * <ul>
+     * <li><i>g<sub>i</sub></i> is the gradient for node i,</li>
+     * <li><i>c<sub>i</sub></i> is the capacity of the cut represented by node i and</li>
+     * <li><i>I<sub>i</sub></i> is the incidence vector for node <i>i</i> (i.e., (1,0,0,1) iff graph nodes 1 and 4 are in this box).</li>
+     * </ul>
+     * Since the boxes of the children partition the box of their parent, each vertex receives the sum of <i>g<sub>i</sub> / c<sub>i</sub></i>
+     * over the nodes on the path from its leaf to the root. This sum is pushed down the tree in a single top-down pass,
+     * s.t. each leaf writes into <code>d</code> once and the time is linear in the number of tree nodes.
+     * @param d {@link GridDemand} to add the results to.
+     */
+    void add_edge_gradients_to_incident_node_excesses(GridDemand d){
+        DoubleStorage entries = d.entries;
+        double[] acc = push_buffer;
+        acc[0] = 0.;
+        // top-down, level by level: all parents of a level are in the levels above
+        for(int l = 1; l < levels(); l++){
+            int level = l;
+            for_chunks(topology.level_offset(l), topology.level_offset(l+1), (c, from, to) -> {
+                for(int i = from; i < to; i++){
+                    acc[i] = acc[topology.parent(i, level)] + gradient[i] / topology.capacity(i, level);
+                    int v = topology.vertex(i, level);
+                    if(v >= 0)
+                        entries.add(v, acc[i]);
+                }
+            });
+        }
+    }
+    
     /**
      * Calculates the default shift.
      * The default shift shifts all exponents s.t. the maximum exponent will be zero.
@@ -563,10 +759,20 @@ public class GridApproximatorTree {
     /**
      * Calculates <i>&Vert;Rb&Vert;<sub>&infin;</sub></i> for the current excess flow b.
      * Use {@link #updateExcessFlows(GridDemand b)} to set b.
+     * The value is taken from the last full update, or recomputed from {@link #congestion} after delta updates.
      * @return <i>&Vert;Rb&Vert;<sub>&infin;</sub></i>.
      */
     public double linf_congestion(){
-        return root.linf_congestion();
+        if(!congestion_linf_current){
+            double linf = 0.;
+            for(int i = 1; i < size; i++){
+                double abs = Math.abs(congestion[i]);
+                if(abs > linf) linf = abs;
+            }
+            congestion_linf = linf;
+            congestion_linf_current = true;
+        }
+        return congestion_linf;
     }
     
     /**
@@ -577,7 +783,41 @@ public class GridApproximatorTree {
         String prefix = "\\begin{tikzpicture}[roundnode/.style={circle, draw=green!60, fill=green!5, very thick, minimum size=7mm}, scale=1.2]\n";
         prefix += "\\hspace{-4cm}\n";
         String suffix = "\\end{tikzpicture}";
-        return prefix+root.tikz2D(0)+suffix;
+        int[] height = new int[size];
+        for(int i = size - 1; i > 0; i--){
+            int p = topology.parent(i);
+            height[p] = Math.max(height[p], height[i] + 1);
+        }
+        return prefix+tikz2D(0, 0, height)+suffix;
+    }
+    
+    /**
+     * Returns TikZ-input for a visual representation of the subtree of node i, including the current values of <i>lmax(2&alpha;Rb)</i> and <i>&nabla;lmax(2&alpha;Rb)</i>.<br>
+     * @param i Root of the subtree.
+     * @param xpos x-position of node i. Recursive calls adjust this parameter with the volume of the respective hypercube represented by each child.
+     * @param height Height of each node. Leaves have height 0.
+     * @return TikZ input for an extended visual representation of this subtree.
+     */
+    private String tikz2D(int i, double xpos, int[] height) {
+        int yscale = 4;
+        int ypos = yscale*height[i];
+        DecimalFormat df = new DecimalFormat("#.0000");
+        DecimalFormat gf = new DecimalFormat("#0.##E0");
+        String s = "";
+        String ns = isLeaf(i) ? ""+topology.vertex(i) : "";
+        s += "\\node[roundnode, minimum size = 0.9cm] at ("+(xpos+g.volume(lower(i), higher(i))/2.)+", "+ypos+") ("+((int)xpos)+"h"+ypos+") {"+ns+"};\n";
+        double sum = xpos;
+        for(int n = topology.child_begin(i); n < topology.child_end(i); n++){
+            String col = (excess[n] == 0.) ? "black!20" : "black";
+            String colGrad = (gradient[n] == 0.) ? "red!20" : "red";
+            String colEdge = (excess[n] == 0.) ? "black!20" : "blue!40";
+            int volume = g.volume(lower(n), higher(n));
+            s += tikz2D(n, sum + volume/2., height);
+            s += String.format("\\draw[thick, ->, color=%s] (",colEdge)+(int)xpos+"h"+ypos+") -- ("+((int)(sum + volume/2.))+"h"+(yscale*height[n])+")"
+                    + String.format(" node[sloped,midway,above=-0.1cm] {\\textcolor{%s}{%s/%d}, \\textcolor{%s}{%s}}", col, df.format(excess[n]), topology.capacity(n), colGrad, gf.format(gradient[n])) + ";\n";
+            sum += volume;
+        }
+        return s;
     }
     
     /**
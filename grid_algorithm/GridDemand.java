@@ -1,12 +1,8 @@
 package grid_algorithm;
 
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Set;
 import project_utils.Tuple;
 
 /**
@@ -15,18 +11,12 @@ import project_utils.Tuple;
  */
 public class GridDemand implements Iterable<Tuple<Integer, Double>> {
 
-    /**
-     * Indices of relevant entries. 
-     * "Irrelevant" currently means that the entry was never changed from the initial zero.
-     * Relevant means not irrelevant.
-     * Might be replaced or moved in future versions.
-     */
-    HashSet<Integer> entryIndices;
     /**
      * Entries of the demand/flow divergence b.
      * This stores the whole information of b.
+     * The storage is on the Java heap by default, see {@link #GridDemand(GridGraph, StorageAllocator)}.
      */
-    double[] entries;
+    DoubleStorage entries;
     /**
      * The graph that is related to this demand/flow divergence.
      */
@@ -40,20 +30,26 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      * @param g The graph related to the constructed demand/flow divergence.
      */
     public GridDemand(GridGraph g){
+        this(g, StorageAllocator.HEAP);
+    }
+    /**
+     * Constructor with custom storage.
+     * All demands/flow divergences derived from this one (e.g. by {@link #scale(double)}) are allocated by the same allocator.
+     * @param g The graph related to the constructed demand/flow divergence.
+     * @param allocator Allocator for the entries, e.g. an {@link OffHeapArena}.
+     */
+    GridDemand(GridGraph g, StorageAllocator allocator){
         this.g = g;
-        entries = new double[g.getN()];
-        entryIndices = new HashSet<>();
+        entries = allocator.allocate(g.getN());
     }
     /**
      * Alternative Constructor.
      * Same as the standard constructor, but uses the graph provided by f.
-     * Equivalent to <code>GridDemand(f.g)</code>.
+     * Equivalent to <code>GridDemand(f.g)</code>, except that the entries are allocated by the allocator of f.
      * @param f 
      */
     public GridDemand(GridFlow f){
-        this.g = f.g;
-        entries = new double[g.getN()];
-        entryIndices = new HashSet<>();
+        this(f.g, f.entries.allocator());
     }
     /**
      * Deprecated Constructor.
@@ -64,8 +60,27 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
     @Deprecated
     public GridDemand(int[] grid_dimensions, int n){
         this.g = new GridGraph(grid_dimensions);
-        entries = new double[n];
-        entryIndices = new HashSet<>();
+        entries = StorageAllocator.HEAP.allocate(n);
+    }
+    
+    /**
+     * Returns a copy of this demand/flow divergence, with entries allocated by <code>allocator</code>.
+     * Use this to move a demand/flow divergence between the Java heap and an {@link OffHeapArena}.
+     * @param allocator Allocator for the entries of the copy.
+     * @return A copy of this demand/flow divergence.
+     */
+    GridDemand copy(StorageAllocator allocator){
+        GridDemand d = new GridDemand(g, allocator);
+        d.entries.copyFrom(entries);
+        return d;
+    }
+    
+    /**
+     * Hands the entries of this demand/flow divergence back to their allocator.
+     * It must not be used afterwards. For demands on the Java heap, this is a no-op.
+     */
+    void release(){
+        entries.release();
     }
     
     /**
@@ -75,9 +90,7 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     // currently not checking if contained to spare runtime
     public void set(Integer at, Double value){
-        //entries.set(((int)at), value);
-        entries[(int)at] = value;
-        entryIndices.add(at);
+        entries.set(at, value);
     }
     /**
      * Sets the entry of b at index <code>at_index</code> to <code>value</code>.
@@ -94,13 +107,7 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      * @param value Value to be added.
      */
     public void add(Integer at, Double value){
-        if(entryIndices.contains(at)){
-            //entries.set((int)at, entries.get((int)at) + value);
-            entries[(int)at] += value;
-        } else {
-            entries[(int)at] += value;
-            entryIndices.add(at);
-        }
+        entries.add(at, value);
     }
     /**
      * Trivial Getter for b<sub><code>at</code></sub>.
@@ -108,7 +115,7 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      * @return b<sub><code>at</code></sub>.
      */
     public double get(Integer at){
-        return entries[(int)at];
+        return entries.get(at);
     }
     
     /**
@@ -118,26 +125,28 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      * @return b<sub><code>at</code></sub>.
      */
     public double get(int[] at_index){
-        return entries[(int)GridGraph.toIndex(at_index, g.nodesPerDim)];
+        return entries.get((int)GridGraph.toIndex(at_index, g.nodesPerDim));
     }
     
     /**
      * Implements the <code>Iterator</code> interface.
+     * The iterator visits all n entries (including the zero entries) in the order of the enumeration scheme.
      * @return The iterator that is used with <code>for (bi : b)</code>.
      */
     @Override
     public Iterator<Tuple<Integer, Double>> iterator() {
         return new Iterator<Tuple<Integer, Double>>() {
-            Iterator<Integer> it = entryIndices.iterator();
+            int i = 0;
             @Override
             public boolean hasNext() {
-                return it.hasNext();
+                return i < entries.length();
             }
 
             @Override
             public Tuple<Integer, Double> next() {
-                Integer i = it.next();
-                return new Tuple<>(i, entries[(int)i]);
+                Tuple<Integer, Double> t = new Tuple<>(i, entries.get(i));
+                i++;
+                return t;
             }
         };
     }
@@ -148,19 +157,13 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     public double lmax_exp(){
         double sum = 0;
-        int non_zeros = 0;
-        for(Integer e : entryIndices){
-            double val = entries[(int)e];
-            double exp = Math.exp(val);
+        for(int i = 0; i < entries.length(); i++){
+            double exp = Math.exp(entries.get(i));
             // choose following line iff Math.exp(x) is cheaper then 1/x
-            //    sum += exp + Math.exp(-e.c);
+            //    sum += exp + Math.exp(-entries.get(i));
             // else choose this line
             sum += exp + (1/exp);
-            non_zeros++;
         }
-        // as this is a sparse representation, but e^0 = 1, we have to add 
-        // 2 times the amount of zero-entries
-        sum += 2*(g.getN()-non_zeros);
         return sum;
     }
     /**
@@ -176,9 +179,8 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     public double l1(){
         double sum = 0;
-        for(Integer e : entryIndices){
-            double val = Math.abs(entries[(int)e]);
-            sum += val;
+        for(int i = 0; i < entries.length(); i++){
+            sum += Math.abs(entries.get(i));
         }
         return sum;
     }
@@ -188,8 +190,8 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     public double linf(){
         double max = 0;
-        for(Integer e : entryIndices){
-            double val = Math.abs(entries[(int)e]);
+        for(int i = 0; i < entries.length(); i++){
+            double val = Math.abs(entries.get(i));
             if(val > max) max = val;
         }
         return max;
@@ -197,17 +199,26 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
     
     /**
      * Calculates the difference of two demands/flow divergences.
+     * The result is allocated by the allocator of <code>a</code>.
      * @param a The minuend.
      * @param b The subtrahend.
      * @return a - b.
      */
     public static GridDemand subtract(GridDemand a, GridDemand b){
-        GridDemand res = new GridDemand(a.g);
-        for(Tuple<Integer, Double> e : a){
-            res.set((int)e.a, e.b);
-        }
-        for(Tuple<Integer, Double> e : b){
-            res.add((int)e.a, -1*e.b);
+        return subtract(a, b, new GridDemand(a.g, a.entries.allocator()));
+    }
+    
+    /**
+     * Calculates the difference of two demands/flow divergences and stores it in <code>res</code>.
+     * <code>res</code> may be one of the operands.
+     * @param a The minuend.
+     * @param b The subtrahend.
+     * @param res {@link GridDemand} to store the results in.
+     * @return a - b, i.e. <code>res</code>.
+     */
+    static GridDemand subtract(GridDemand a, GridDemand b, GridDemand res){
+        for(int i = 0; i < res.entries.length(); i++){
+            res.entries.set(i, a.entries.get(i) - b.entries.get(i));
         }
         return res;
     }
@@ -217,11 +228,8 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     @Override
     protected GridDemand clone(){
-        GridDemand d = new GridDemand(g);
-        for(Integer i : entryIndices){
-            d.entryIndices.add(i);
-            d.entries[i] = entries[i];
-        }
+        GridDemand d = new GridDemand(g, entries.allocator());
+        d.entries.copyFrom(entries);
         return d;
     }
     
@@ -231,9 +239,9 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      * @return <code>s</code> &#8729; b.
      */
     public GridDemand scale(double s) {
-        GridDemand d = clone();
-        for(Integer i : d.entryIndices){
-            d.entries[i] *= s;
+        GridDemand d = new GridDemand(g, entries.allocator());
+        for(int i = 0; i < entries.length(); i++){
+            d.entries.set(i, entries.get(i) * s);
         }
         return d;
     }
@@ -243,8 +251,8 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      * @return <code>s</code> &#8729; b.
      */
     public GridDemand scale_inplace(double s) {
-        for(Integer i : this.entryIndices){
-            this.entries[i] *= s;
+        for(int i = 0; i < entries.length(); i++){
+            this.entries.set(i, entries.get(i) * s);
         }
         return this;
     }
@@ -257,8 +265,8 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     public static double scalar_prod(GridDemand a, GridDemand b){
         double sum = 0.;
-        for(Integer i : a.entryIndices){
-            sum += a.entries[i] * b.entries[i];
+        for(int i = 0; i < a.entries.length(); i++){
+            sum += a.entries.get(i) * b.entries.get(i);
         }
         return sum;
     }
@@ -266,20 +274,21 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
     /**
      * Calculates the flow given by the difference of the excess flows.
      * An edge (b<sub>i</sub>, b<sub>j</sub>) gets the value b<sub>j</sub>-b<sub>i</sub>.
+     * The differences are calculated by {@link GridGraph#incidence()}.
      * @return B<sup>T</sup> &#8729; b.
      */
     public GridFlow toPotentialDiffEdgesFlow(){
-        GridFlow f = new GridFlow(g);
-        for(int i = 0; i < g.getN(); i++){
-            int[][] neighbours = g.getNeighbours(g.toPosition(i));
-            for(int k = 0; k < neighbours.length; k++){
-                int other = g.toIndex(neighbours[k]);
-                if(i < other){
-                    double dif = this.get(i) - this.get(other);
-                    f.set(i, other, -dif);
-                }
-            }
-        }
+        return toPotentialDiffEdgesFlow(g.incidence());
+    }
+
+    /**
+     * Same as {@link #toPotentialDiffEdgesFlow()}, but with the given kernels instead of the shared ones of the grid graph.
+     * @param kernel The incidence kernels of the grid graph.
+     * @return B<sup>T</sup> &#8729; b.
+     */
+    GridFlow toPotentialDiffEdgesFlow(IncidenceKernel kernel){
+        GridFlow f = new GridFlow(g, entries.allocator());
+        kernel.potential_differences(entries, f.entries);
         return f;
     }
 
@@ -288,7 +297,7 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
      */
     @Override
     public String toString() {
-        return Arrays.toString(this.entries);
+        return Arrays.toString(this.entries.toArray());
     }
     
     /**
@@ -304,7 +313,7 @@ public class GridDemand implements Iterable<Tuple<Integer, Double>> {
         String s = "\\begin{tikzpicture}[roundnode/.style={circle, draw=green!60, fill=green!5, very thick, minimum size=7mm}, scale=1.2]\n";
         for(int i = 0; i < this.g.getN(); i++){
             double scale = 3;
-            s += "\\node[roundnode, minimum size = 2cm] at ("+scale*g.toPosition(i)[0]+", "+scale*g.toPosition(i)[1]+") {\\textcolor{blue!28}{"+i+":} "+(get(i) == 0.0 ? "0" : "\\textcolor{red}{"+df.format(get(i))+"}")+"};\n";
+            s += "\\node[roundnode, minimum size = 2cm] at ("+scale*g.coordinate(i, 0)+", "+scale*g.coordinate(i, 1)+") {\\textcolor{blue!28}{"+i+":} "+(get(i) == 0.0 ? "0" : "\\textcolor{red}{"+df.format(get(i))+"}")+"};\n";
         }
         s += "\\end{tikzpicture}";
         return s;
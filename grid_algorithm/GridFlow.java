@@ -1,8 +1,6 @@
 package grid_algorithm;
 
 import java.text.DecimalFormat;
-import java.util.HashMap;
-import java.util.Map.Entry;
 import project_utils.Triple;
 import project_utils.Tuple;
 
@@ -16,16 +14,14 @@ public class GridFlow {
      */
     GridGraph g;
     /**
-     * A {@link java.util.HashMap} storing the information of this flow.
-     * Might be changed to a {@link java.lang.Long} &rarr; {@link java.lang.Double} map for bigger graph support.
-     * Might also be replaced by an array-based implementation, once an enumeration scheme (and its inverse) is established.
+     * The entries of this flow, indexed by the enumeration scheme of {@link GridGraph#toEdgeIndex(int, int)}.
+     * An entry f<sub>e</sub> &gt; 0 denotes flow from the lower to the higher vertex of the edge <i>e</i>.
+     * The storage is on the Java heap by default, see {@link #GridFlow(GridGraph, StorageAllocator)}.
      */
-    HashMap<Integer, Double> entries;
+    DoubleStorage entries;
     /**
      * Stores the number of edges.
-     * With the current implementation, the edge count has to be calculated. 
-     * To improve efficiency, it is calculated once at construction (or assigned) and can then be used.
-     * Will be replaced as soon as the entries are stored in an array with length m.
+     * It is calculated once at construction (or assigned) and equals the length of {@link #entries}.
      */
     int m;
     
@@ -35,27 +31,54 @@ public class GridFlow {
      * @param g The graph related to this flow.
      */
     public GridFlow(GridGraph g){
+        this(g, StorageAllocator.HEAP);
+    }
+    
+    /**
+     * Constructor with custom storage.
+     * All flows derived from this flow (e.g. by {@link #scale(double)}) are allocated by the same allocator.
+     * @param g The graph related to this flow.
+     * @param allocator Allocator for the entries, e.g. an {@link OffHeapArena}.
+     */
+    GridFlow(GridGraph g, StorageAllocator allocator){
         this.g = g;
         calculateM();
-        entries = new HashMap<>(m);
+        entries = allocator.allocate(m);
     }
     
     /**
      * Alternative "copy"/"mirror" constructor.
      * The constructed flow object will be the same as the input, but only with 0 at each edge iff clone is false.
      * Iff clone is true, the constructed flow object is a copy of f.
+     * The entries are allocated by the allocator of f.
      * @param f Flow object to clone/mirror.
      * @param clone <ul><li><code>true</code> - construct a clone of <code>f</code>.</li><li><code>false</code> - construct a flow with same structure as <code>f</code>.</li></ul>
      */
     GridFlow(GridFlow f, boolean clone){
-        this.entries = new HashMap<>();
         this.g = f.g;
         this.m = f.m;
-        if(clone){
-            for(Entry<Integer, Double> t : f.entries.entrySet()){
-                this.entries.put(t.getKey(), t.getValue());
-            }
-        }
+        this.entries = f.entries.allocator().allocate(m);
+        if(clone) this.entries.copyFrom(f.entries);
+    }
+    
+    /**
+     * Returns a copy of this flow, with entries allocated by <code>allocator</code>.
+     * Use this to move a flow between the Java heap and an {@link OffHeapArena}.
+     * @param allocator Allocator for the entries of the copy.
+     * @return A copy of this flow.
+     */
+    GridFlow copy(StorageAllocator allocator){
+        GridFlow f = new GridFlow(g, allocator);
+        f.entries.copyFrom(entries);
+        return f;
+    }
+    
+    /**
+     * Hands the entries of this flow back to their allocator.
+     * The flow must not be used afterwards. For flows on the Java heap, this is a no-op.
+     */
+    void release(){
+        entries.release();
     }
     
     /**
@@ -68,7 +91,6 @@ public class GridFlow {
         for(int i = 0; i < g.nodesPerDim.length; i++){
             sum += (g.getN()/g.nodesPerDim[i])*(g.nodesPerDim[i]-1);
         }
-        // 2*sum or sum ? TODO
         this.m = sum;
         return this.m;
     }
@@ -94,10 +116,10 @@ public class GridFlow {
      * @param from First vertex of the edge.
      * @param to Second vertex of the edge.
      * @param value Value to be assigned to the edge.
+     * @throws IllegalArgumentException iff <code>from</code> and <code>to</code> are not adjacent.
      */
     public void set(Integer from, Integer to, Double value){
-        Triple<Integer, Integer, Double> e = (from > to) ? new Triple<>(to, from, -value) : new Triple<>(from, to, value);
-        entries.put(this.hashEntry(new Tuple<>(e.a, e.b)), e.c);
+        entries.set(this.edgeIndex(from, to), (from > to) ? -value : value);
     }
     /**
      * Set f<sub>e</sub>= <code>value</code>, where e = (<code>from,to</code>).
@@ -116,38 +138,36 @@ public class GridFlow {
      * @param from First vertex of the edge.
      * @param to Second vertex of the edge.
      * @param value Value to be added to the edge.
+     * @throws IllegalArgumentException iff <code>from</code> and <code>to</code> are not adjacent.
      */
     public void add(Integer from, Integer to, double value){
-        if(from > to)
-            this.add(this.hashEntry(new Tuple<>(to, from)), -value);
-        else
-            this.add(this.hashEntry(new Tuple<>(from, to)), value);
+        entries.add(this.edgeIndex(from, to), (from > to) ? -value : value);
     }
     /**
-     * Set f<sub>e</sub>= <code>value</code>, where <code>combinedIndex</code> is the identifier of e.
-     * @param combinedIndex Identifier for the edge.
+     * Set f<sub>e</sub>= <code>value</code>, where <code>edge</code> is the index of e.
+     * @param edge Index of the edge, see {@link GridGraph#toEdgeIndex(int, int)}.
      * @param value Value to be assigned to the edge.
      */
-    void set(int combinedIndex, double value){
-        entries.put(combinedIndex, value);
+    void set(int edge, double value){
+        entries.set(edge, value);
     }
     /**
-     * Add <code>value</code> to f<sub>e</sub>, where <code>combinedIndex</code> is the identifier of e.
-     * @param combinedIndex Identifier for the edge.
+     * Add <code>value</code> to f<sub>e</sub>, where <code>edge</code> is the index of e.
+     * @param edge Index of the edge, see {@link GridGraph#toEdgeIndex(int, int)}.
      * @param value Value to be added to the edge.
      */
-    void add(int combinedIndex, double value){
-        entries.put(combinedIndex, (entries.containsKey(combinedIndex) ? entries.get(combinedIndex) : 0)+ value);
+    void add(int edge, double value){
+        entries.add(edge, value);
     }
     /**
      * Get f<sub>e</sub>, where e = (<code>from,to</code>).
      * @param from First vertex of the edge.
      * @param to Second vertex of the edge.
-     * @return f<sub>e</sub>.
+     * @return f<sub>e</sub>, or 0 iff <code>from</code> and <code>to</code> are not adjacent.
      */
     public double get(Integer from, Integer to){
-        int combined = this.hashEntry((from > to) ? (new Tuple<>(to, from)) : (new Tuple<>(from, to)));
-        return (entries.containsKey(combined)) ? ((from > to ? -1 : 1)*entries.get(combined)) : 0.;
+        int edge = g.edgeIndexOf(from, to);
+        return (edge >= 0) ? ((from > to ? -1 : 1)*entries.get(edge)) : 0.;
     }
     /**
      * Get f<sub>e</sub>, where e = (<code>from,to</code>).
@@ -169,12 +189,27 @@ public class GridFlow {
      * @return <i>B &#8729; f</i>
      */
     public GridDemand calculateExcessFlows(){
-        GridDemand b = new GridDemand(this);
-        for(Entry<Integer, Double> e : entries.entrySet()){
-            Tuple<Integer, Integer> edge = this.hashToTuple(e.getKey());
-            b.add(edge.a, -e.getValue());
-            b.add(edge.b, e.getValue());
-        }
+        return calculateExcessFlows(new GridDemand(this));
+    }
+    
+    /**
+     * Same as {@link #calculateExcessFlows()}, but stores the result in <code>b</code>.
+     * The excess flows are gathered per vertex by {@link GridGraph#incidence()}.
+     * @param b {@link GridDemand} to store the results in. Its previous entries are overwritten.
+     * @return <i>B &#8729; f</i>, i.e. <code>b</code>.
+     */
+    GridDemand calculateExcessFlows(GridDemand b){
+        return calculateExcessFlows(b, g.incidence());
+    }
+
+    /**
+     * Same as {@link #calculateExcessFlows(GridDemand)}, but with the given kernels instead of the shared ones of the grid graph.
+     * @param b {@link GridDemand} to store the results in. Its previous entries are overwritten.
+     * @param kernel The incidence kernels of the grid graph.
+     * @return <i>B &#8729; f</i>, i.e. <code>b</code>.
+     */
+    GridDemand calculateExcessFlows(GridDemand b, IncidenceKernel kernel){
+        kernel.excess_flows(entries, b.entries);
         return b;
     }
     
@@ -189,36 +224,32 @@ public class GridFlow {
      */
     public double lmax_exp(){
         double sum = 0;
-        int non_zeros = 0;
-        for(Entry<Integer, Double> e : entries.entrySet()){
-            double exp = Math.exp(e.getValue());
+        for(int e = 0; e < m; e++){
+            double exp = Math.exp(entries.get(e));
             // choose following line iff Math.exp(-x) is cheaper then 1/x
-            // sum += exp + Math.exp(-e.c);
+            // sum += exp + Math.exp(-entries.get(e));
             // else choose this line
             sum += exp + (1/exp);
-            non_zeros++;
         }
-        // as this is a sparse representation, but e^0 = 1, we have to add 
-        // 2 times the amount of zero-entries
-        sum += 2*(m-non_zeros);
         return sum;
     }
     /**
      * Calculates e<sup><i>lmax</i>(f)</sup>=&sum;<sub>i</sub> e<sup>f<sub>i</sub>+<code>shift</code></sup>+e<sup>-f<sub>i</sub>+<code>shift</code></sup>.
      * Use this method to avoid numeric errors due to high values in <i>f</i>. 
      * The shift is directly added to all exponents, so use a negative value for <code>shift</code> to decrease the exponents.
+     * For flows on the Java heap, the sum is calculated by {@link SoftmaxKernel#INSTANCE}.
      * @return &sum;<sub>i</sub> e<sup>f<sub>i</sub>+<code>shift</code></sup>+e<sup>-f<sub>i</sub>+<code>shift</code></sup>.
      */
     public double lmax_exp_shifted(double shift){
+        double[] a = entries.array();
+        if(a != null)
+            return SoftmaxKernel.INSTANCE.sum_exp_sym(a, m, 1., shift);
         double sum_exps = 0;
-        int nonzeros = 0;
-        for(Entry<Integer, Double> e : entries.entrySet()){
-            double exp = Math.exp(e.getValue() + shift) + Math.exp((-e.getValue()) + shift);
+        for(int e = 0; e < m; e++){
+            double f_e = entries.get(e);
+            double exp = Math.exp(f_e + shift) + Math.exp((-f_e) + shift);
             sum_exps += exp;
-            nonzeros++;
         }
-        double exp_shift = Math.exp(shift);
-        sum_exps += 2 * exp_shift * (m - nonzeros);
         return sum_exps;
     }
     /**
@@ -258,12 +289,10 @@ public class GridFlow {
     public GridFlow gradient_lmax(){
         double sum_exps = lmax_exp();
         GridFlow f = new GridFlow(this, false);
-        for(Entry<Integer, Double> t : this.entries.entrySet()){
-            double exp = Math.exp(t.getValue());
-            f.set(t.getKey(), (exp-(1./exp))/sum_exps);
+        for(int e = 0; e < m; e++){
+            double exp = Math.exp(entries.get(e));
+            f.entries.set(e, (exp-(1./exp))/sum_exps);
         }
-        // where there is i with no entry, xi = 0, hence e^xi - e^(-xi) = 0, thus 
-        // also the gradient is 0 at i
         return f;
     }
     /**
@@ -275,10 +304,17 @@ public class GridFlow {
     public GridFlow gradient_lmax_shifted(double shift){
         double sum_exps = lmax_exp_shifted(shift);
         GridFlow f = new GridFlow(this, false);
-        for(Entry<Integer, Double> t : this.entries.entrySet()){
-            double exp1 = Math.exp(t.getValue() + shift);
-            double exp2 = Math.exp(-t.getValue() + shift);
-            f.set(t.getKey(), (exp1 - exp2) / sum_exps);
+        double[] a = entries.array(), fa = f.entries.array();
+        if(a != null && fa != null){
+            SoftmaxKernel.INSTANCE.diff_exp_sym(a, fa, m, 1., shift);
+            SoftmaxKernel.INSTANCE.divide(fa, m, sum_exps);
+            return f;
+        }
+        for(int e = 0; e < m; e++){
+            double f_e = entries.get(e);
+            double exp1 = Math.exp(f_e + shift);
+            double exp2 = Math.exp(-f_e + shift);
+            f.entries.set(e, (exp1 - exp2) / sum_exps);
         }
         return f;
     }
@@ -301,14 +337,61 @@ public class GridFlow {
     public GridFlow gradient_lmax_shifted(){
         return gradient_lmax_shifted(getDefaultShift());
     }
+    /**
+     * Calculates <i>lmax(f)</i> and &nabla; <i>lmax(f)</i> together.
+     * In contrast to calling {@link #lmax_shifted(double)} and {@link #gradient_lmax_shifted(double)},
+     * the exponentials are evaluated only once per edge: a single pass stores the gradient numerators
+     * e<sup>f<sub>i</sub>+<code>shift</code></sup>-e<sup>-f<sub>i</sub>+<code>shift</code></sup> and accumulates the normaliser,
+     * and a second pass divides by the normaliser.
+     * The results equal those of the separate methods.
+     * For flows on the Java heap, both passes use {@link SoftmaxKernel#INSTANCE}.
+     * Use a negative value for <code>shift</code> to reduce exponents.
+     * @param shift The shift to be <b>added</b> to all exponents.
+     * @return A triple of 
+     * <ul>
+     * <li><i>lmax(f)</i>,</li>
+     * <li>the normaliser &sum;<sub>i</sub> e<sup>f<sub>i</sub>+<code>shift</code></sup>+e<sup>-f<sub>i</sub>+<code>shift</code></sup> and</li>
+     * <li>&nabla; <i>lmax(f)</i>.</li>
+     * </ul>
+     */
+    public Triple<Double, Double, GridFlow> lmax_gradient_shifted(double shift){
+        GridFlow f = new GridFlow(this, false);
+        double[] a = entries.array(), fa = f.entries.array();
+        if(a != null && fa != null){
+            double sum_exps = SoftmaxKernel.INSTANCE.diff_exp_sym(a, fa, m, 1., shift);
+            SoftmaxKernel.INSTANCE.divide(fa, m, sum_exps);
+            return new Triple<>(Math.log(sum_exps) - shift, sum_exps, f);
+        }
+        double sum_exps = 0;
+        for(int e = 0; e < m; e++){
+            double f_e = entries.get(e);
+            double exp1 = Math.exp(f_e + shift);
+            double exp2 = Math.exp(-f_e + shift);
+            sum_exps += exp1 + exp2;
+            f.entries.set(e, exp1 - exp2);
+        }
+        for(int e = 0; e < m; e++){
+            f.entries.set(e, f.entries.get(e) / sum_exps);
+        }
+        return new Triple<>(Math.log(sum_exps) - shift, sum_exps, f);
+    }
+    /**
+     * Calculates <i>lmax(f)</i> and &nabla; <i>lmax(f)</i> together.
+     * Same as <code>lmax_gradient_shifted(shift)</code>, but uses the default shift.
+     * @return A triple of <i>lmax(f)</i>, the shifted normaliser and &nabla; <i>lmax(f)</i>, 
+     * see {@link #lmax_gradient_shifted(double)}.
+     */
+    public Triple<Double, Double, GridFlow> lmax_gradient_shifted(){
+        return lmax_gradient_shifted(getDefaultShift());
+    }
     /**
      * Calculates the <i>l</i><sub>1</sub>-norm.
      * @return &Vert; f &Vert;<sub>1</sub> = &sum;<sub>i</sub> &vert; f<sub>i</sub> &vert;.
      */
     public double l1() {
         double curr = 0;
-        for(Entry<Integer, Double> e : entries.entrySet()){
-            curr += Math.abs(e.getValue());
+        for(int e = 0; e < m; e++){
+            curr += Math.abs(entries.get(e));
         }
         return curr;
     }
@@ -318,8 +401,8 @@ public class GridFlow {
      */
     public double linf(){
         double max = 0;
-        for(Entry<Integer, Double> t : this.entries.entrySet()){
-            double v = Math.abs(t.getValue());
+        for(int e = 0; e < m; e++){
+            double v = Math.abs(entries.get(e));
             if(v > max) max = v;
         }
         return max;
@@ -331,9 +414,9 @@ public class GridFlow {
      * @return <code>d</code> &#8729; f.
      */
     public GridFlow scale(double d) {
-        GridFlow cl = new GridFlow(this, true);
-        for(Entry<Integer, Double> t : cl.entries.entrySet()){
-            t.setValue(t.getValue() * d);
+        GridFlow cl = new GridFlow(this, false);
+        for(int e = 0; e < m; e++){
+            cl.entries.set(e, entries.get(e) * d);
         }
         return cl;
     }
@@ -343,8 +426,8 @@ public class GridFlow {
      * @return <code>d</code> &#8729; f.
      */
     public GridFlow scale_inplace(double d) {
-        for(Entry<Integer, Double> t : this.entries.entrySet()){
-            t.setValue(t.getValue() * d);
+        for(int e = 0; e < m; e++){
+            entries.set(e, entries.get(e) * d);
         }
         return this;
     }
@@ -355,32 +438,25 @@ public class GridFlow {
      * @return <code>a</code> + <code>b</code>.
      */
     public static GridFlow add(GridFlow a, GridFlow b) {
-        GridFlow cl = new GridFlow(a, true);
-        for(Entry<Integer, Double> t : b.entries.entrySet()){
-            cl.add(t.getKey(), t.getValue());
+        GridFlow cl = new GridFlow(a, false);
+        for(int e = 0; e < a.m; e++){
+            cl.entries.set(e, a.entries.get(e) + b.entries.get(e));
         }
         return cl;
     }
     
     /**
-     * Returns the identifier for the edge <code>t</code>.
-     * Might be extended to a <code>long</code> identifier in the future, or
-     * even be replaced when an enumeration scheme for the edges has been established.
-     * @param t The edge represented as tuple of vertex identifiers.
-     * @return The identifier for this edge.
-     */
-    int hashEntry(Tuple<Integer, Integer> t){
-        return (((int)t.a) << 16) + t.b;
-    }
-    /**
-     * Inverse function to <code>hashEntry</code>.
-     * @param hash Edge identifier.
-     * @return Tuple of vertex identifiers.
-     */
-    Tuple<Integer, Integer> hashToTuple(int hash){
-        int second = hash & 0x0000_ffff;
-        int first = (hash >> 16) & 0x0000_ffff;
-        return new Tuple<>(first, second);
+     * Returns the index of the edge (<code>from,to</code>).
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @return The index of this edge, see {@link GridGraph#toEdgeIndex(int, int)}.
+     * @throws IllegalArgumentException iff <code>from</code> and <code>to</code> are not adjacent.
+     */
+    int edgeIndex(int from, int to){
+        int edge = g.edgeIndexOf(from, to);
+        if(edge < 0)
+            throw new IllegalArgumentException(String.format("Vertices %d and %d are not adjacent.", from, to));
+        return edge;
     }
 
     /**
@@ -389,9 +465,11 @@ public class GridFlow {
     @Override
     public String toString() { 
         String s = "[\n";
-        for(Entry<Integer, Double> t : this.entries.entrySet()){
-            Tuple<Integer, Integer> i = this.hashToTuple(t.getKey());
-            s += "\t"+i.toString()+" :   "+t.getValue()+"\n";
+        for(int e = 0; e < m; e++){
+            double f_e = entries.get(e);
+            if(f_e == 0.) continue;
+            Tuple<Integer, Integer> i = new Tuple<>(g.edgeFrom(e), g.edgeTo(e));
+            s += "\t"+i.toString()+" :   "+f_e+"\n";
         }
         return s + "]";
     }
@@ -405,27 +483,27 @@ public class GridFlow {
      * @return TikZ input for a visual representation of this flow.
      */
     public String tikz2D(){
-        String s = "\\begin{tikzpicture}[roundnode/.style={circle, draw=green!60, fill=green!5, very thick, minimum size=7mm}, scale=1.2]\n";
+        StringBuilder s = new StringBuilder("\\begin{tikzpicture}[roundnode/.style={circle, draw=green!60, fill=green!5, very thick, minimum size=7mm}, scale=1.2]\n");
         DecimalFormat df = new DecimalFormat("#.000");
-        for(int i = 0; i < getN(); i++){
+        int n = g.getN();
+        for(int i = 0; i < n; i++){
             double scale = 2;
-            s += "\\node[roundnode, minimum size = 1cm] at ("+scale*g.toPosition(i)[0]+", "+scale*g.toPosition(i)[1]+") ("+i+") {\\textcolor{black}{"+i+"}};\n";
+            s.append("\\node[roundnode, minimum size = 1cm] at (").append(scale*g.coordinate(i, 0)).append(", ").append(scale*g.coordinate(i, 1))
+                    .append(") (").append(i).append(") {\\textcolor{black}{").append(i).append("}};\n");
         }
-        for (int i = 0; i < getN(); i++) {
-            int[][] neighbours = g.getNeighbours(g.toPosition(i));
-            for(int[] n : neighbours){
-                int indexTo = g.toIndex(n);
-                if(indexTo > i){
-                    String number = (this.get(i, indexTo) == 0.0) ? "\\textcolor{blue!28}{0}" : df.format(this.get(i, indexTo));
-                    if(indexTo == i + 1)
-                        s += "\\draw[thick, ->] ("+i+") -- ("+indexTo+") node[midway,right] {"+number+"};\n";
-                    else
-                        s += "\\draw[thick, ->] ("+i+") -- ("+indexTo+") node[midway,above] {"+number+"};\n";
+        for (int i = 0; i < n; i++) {
+            int from = i;
+            g.forEachNeighbour(i, (to, edge, dim) -> {
+                if(to > from){
+                    // from is the lower vertex, so the flow is not mirrored
+                    double value = entries.get(edge);
+                    String number = (value == 0.0) ? "\\textcolor{blue!28}{0}" : df.format(value);
+                    s.append("\\draw[thick, ->] (").append(from).append(") -- (").append(to)
+                            .append((to == from + 1) ? ") node[midway,right] {" : ") node[midway,above] {").append(number).append("};\n");
                 }
-            }
-            
+            });
         }
-        s += "\\end{tikzpicture}";
-        return s;
+        s.append("\\end{tikzpicture}");
+        return s.toString();
     }
 }
@@ -1,6 +1,5 @@
 package grid_algorithm;
 
-import java.util.ArrayList;
 import jdk.jshell.spi.ExecutionControl;
 import project_utils.*;
 
@@ -14,15 +13,63 @@ public class GridGraph {
      * have <code>nodesPerDim</code> = [2,4,5,3].
      */
     int[] nodesPerDim;
-    
+    /**
+     * The index distance of neighbouring vertices per dimension, according to the enumeration scheme of {@link #toIndex(int[])}.
+     * For example, a 2x4x5x3 grid has <code>strides</code> = [60,15,3,1].
+     */
+    int[] strides;
+    /**
+     * The first edge index per dimension, according to the enumeration scheme of {@link #toEdgeIndex(int, int)}.
+     * The edges along dimension <code>i</code> have the indices <code>edgeOffsets[i]</code> to <code>edgeOffsets[i+1]-1</code>,
+     * hence <code>edgeOffsets[getDim()]</code> equals m.
+     */
+    int[] edgeOffsets;
+    /**
+     * Kernels for the incidence matrix of this grid graph, see {@link #incidence()}.
+     */
+    private IncidenceKernel incidence;
+
     /**
      * Standard constructor.
      * @param nodesPerDim Nodes per dimension.
+     * @throws IllegalArgumentException iff some dimension is not positive, or n or m can not be enumerated with <code>int</code> indices.
      */
     public GridGraph(int... nodesPerDim){
         this.nodesPerDim = nodesPerDim;
+        this.strides = new int[nodesPerDim.length];
+        this.edgeOffsets = new int[nodesPerDim.length + 1];
+        long n = 1;
+        for(int i = nodesPerDim.length - 1; i >= 0; i--){
+            if(nodesPerDim[i] < 1)
+                throw new IllegalArgumentException("Grid dimensions have to be positive.");
+            strides[i] = (int)n;
+            n *= nodesPerDim[i];
+            if(n > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Grid graphs with more than Integer.MAX_VALUE vertices are not supported.");
+        }
+        long m = 0;
+        for(int i = 0; i < nodesPerDim.length; i++){
+            edgeOffsets[i] = (int)m;
+            m += (n/nodesPerDim[i])*(nodesPerDim[i]-1);
+            if(m > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Grid graphs with more than Integer.MAX_VALUE edges are not supported.");
+        }
+        edgeOffsets[nodesPerDim.length] = (int)m;
     }
     
+    /**
+     * Returns the kernels for the incidence matrix of this grid graph, see {@link IncidenceKernel}.
+     * The kernels are created on the first call, after this grid graph is fully constructed, and are shared by all later calls.
+     * They run serially with the default block sizes and are never reconfigured, s.t. all users of this grid graph can share them;
+     * solvers with their own settings use their own kernels, see {@link GridApproximation#incidence()}.
+     * @return The incidence kernels.
+     */
+    synchronized IncidenceKernel incidence(){
+        if(incidence == null)
+            incidence = new IncidenceKernel(this);
+        return incidence;
+    }
+
     /**
      * Returns the dimensionality of this grid graph.
      * Example: <code>(new GridGraph(2,3,2,3)).getDim()</code> returns 4.
@@ -37,34 +84,24 @@ public class GridGraph {
      * @return n.
      */
     public int getN() {
-        int prod = 1;
-        for(int i : nodesPerDim){
-            prod *= i;
-        }
-        return prod;
+        return (nodesPerDim.length == 0) ? 1 : strides[0]*nodesPerDim[0];
     }
     
     /**
      * Returns the number of edges ("m") of this grid graph.
-     * The formula used to calculate m is: m = &sum;<sub>i</sub>(n/n<sub>i</sub>) &#8729; (n<sub>i</sub>-1).
+     * The formula used to calculate m is: m = &sum;<sub>i</sub>(n/n<sub>i</sub>) &#8729; (n<sub>i</sub>-1), which is evaluated once by the constructor.
      * @return m.
      */
     public int getM(){
-        int sum = 0;
-        int n = getN();
-        for(int i : nodesPerDim){
-            sum += (n/i)*(i-1);
-        }
-        return sum;
+        return edgeOffsets[nodesPerDim.length];
     }
     
     /**
      * Calculates the neighbour positions of a vertex.
+     * Allocates one array per neighbour; loops over many vertices should use {@link #forEachNeighbour(int, NeighbourVisitor)} instead.
      * @param at A vertex in vector grid coordinates.
      * @return The neighbours of <code>at</code>, as an array of vector grid coordinates.
      */
-    // todo: make more efficient 1d-index variant, which might also reduce
-    // loop complexities to theta(d) instead theta(d^2) through index calculations
     // Tested
     public int[][] getNeighbours(int[] at) {
         int size = 2*at.length;
@@ -101,6 +138,53 @@ public class GridGraph {
         }
         return neighbours;
     }
+
+    /**
+     * Action on a neighbour of a vertex, see {@link #forEachNeighbour(int, NeighbourVisitor)}.
+     */
+    @FunctionalInterface
+    public interface NeighbourVisitor {
+        /**
+         * Processes a neighbour.
+         * @param neighbour The neighbour, according to the enumeration scheme of {@link #toIndex(int[])}.
+         * @param edge Index of the edge to the neighbour, see {@link #toEdgeIndex(int, int)}.
+         * @param dim The dimension along which the edge is directed.
+         */
+        void visit(int neighbour, int edge, int dim);
+    }
+
+    /**
+     * Visits the neighbours of a vertex, in the same order as {@link #getNeighbours(int[])} returns them,
+     * i.e. dimension by dimension, with the lower neighbour before the higher one.
+     * Works on the enumeration indices only, s.t. no arrays are allocated.
+     * @param at A vertex, according to the enumeration scheme of {@link #toIndex(int[])}.
+     * @param visitor The action for each neighbour.
+     */
+    public void forEachNeighbour(int at, NeighbourVisitor visitor){
+        for(int k = 0; k < nodesPerDim.length; k++){
+            int s = strides[k];
+            int line = s*nodesPerDim[k];
+            int block = at / line;
+            int rem = at - block*line;
+            // the edge from at to at+s, see toEdgeIndex
+            int edge = edgeOffsets[k] + block*(line - s) + rem;
+            if(rem >= s)
+                visitor.visit(at - s, edge - s, k);
+            if(rem < line - s)
+                visitor.visit(at + s, edge, k);
+        }
+    }
+
+    /**
+     * Returns a single coordinate of a vertex, without calculating the whole coordinate vector.
+     * It holds that <code>coordinate(i, dim) == toPosition(i)[dim]</code>.
+     * @param index A vertex, according to the enumeration scheme of {@link #toIndex(int[])}.
+     * @param dim The dimension.
+     * @return The coordinate of <code>index</code> in dimension <code>dim</code>.
+     */
+    public int coordinate(int index, int dim){
+        return (index / strides[dim]) % nodesPerDim[dim];
+    }
     
     /**
      * Calculates the cut capacity of a hypercube cut.
@@ -134,10 +218,11 @@ public class GridGraph {
      */
     @Deprecated
     private double edgeScalar(int[] lowerBounds, int[] higherBounds, Vector v){
-        int[] indices = indicesOfBoxNodes(lowerBounds, higherBounds);
         double s = 0;
-        for(int i : indices){
-            s += v.get(i);
+        for(BoxCursor c = new BoxCursor(this).reset(lowerBounds, higherBounds); c.next(); ){
+            for(int i = c.start(); i < c.end(); i++){
+                s += v.get(i);
+            }
         }
         s /= capHyperBox(lowerBounds, higherBounds);
         return s;
@@ -247,49 +332,20 @@ public class GridGraph {
     }
     
     /**
-     * Recursively calculates the indices according to the enumeration scheme for all vertices inside the given hypercube.
+     * Calculates the indices according to the enumeration scheme for all vertices inside the given hypercube, in ascending order.
      * It is coherent with the enumeration scheme from <code>toIndex</code>.
+     * Allocates an array of the volume of the hypercube; use a {@link BoxCursor} to process the vertices run by run instead.
      * @param lowerBounds Lower bounds of the represented hypercube.
      * @param higherBounds Higher bounds of the represented hypercube.
      * @return Array with the indices of all vertices inside the hypercube, according to the enumeration scheme from <code>toIndex</code>.
      */
     public int[] indicesOfBoxNodes(int[] lowerBounds, int[] higherBounds){
-        int iterationLevel = 0;
-        while(iterationLevel < nodesPerDim.length && higherBounds[iterationLevel] == lowerBounds[iterationLevel]){
-            iterationLevel++;
-        }
-        /**
-         * Determines the current recursive iteration level.
-         * The first index where lower and higher bounds do not differ is the dimension along which we
-         * recursively call this method. For example:
-         *      indicesOfBoxNodes([2,0,2,2,4,1], [2,0,2,4,7,1])
-         *                               ^              ^
-         *   will make recursive calls to 
-         *      indicesOfBoxNodes([2,0,2,2,4,1], [2,0,2,2,7,1])
-         *      indicesOfBoxNodes([2,0,2,3,4,1], [2,0,2,3,7,1])
-         *      indicesOfBoxNodes([2,0,2,4,4,1], [2,0,2,4,7,1])
-         * iterationLevel == nodesPerDim.length  IFF  lowerBounds == higherBounds
-         */
-        if(iterationLevel >= nodesPerDim.length) return new int[]{toIndex(lowerBounds)};
-        /**
-         * iterate recursively the current level and add the results to "indices"
-         */
-        ArrayList<Integer> indices = new ArrayList<>();
-        int[] currentRecursionLower = new int[lowerBounds.length];
-        int[] currentRecursionHigher = new int[higherBounds.length];
-        for(int i = 0; i < lowerBounds.length; i++){
-            currentRecursionLower[i] = lowerBounds[i];
-            currentRecursionHigher[i] = higherBounds[i];
-        }
-        for(int i = lowerBounds[iterationLevel]; i <= higherBounds[iterationLevel]; i++){
-            currentRecursionLower[iterationLevel] = i;
-            currentRecursionHigher[iterationLevel] = i;
-            int[] iterationLevelIndices = indicesOfBoxNodes(currentRecursionLower, currentRecursionHigher);
-            for(int k : iterationLevelIndices) indices.add(k);
-        }
-        int[] result = new int[indices.size()];
-        for(int k = 0; k < indices.size(); k++){
-            result[k] = indices.get(k);
+        int[] result = new int[volume(lowerBounds, higherBounds)];
+        int pos = 0;
+        for(BoxCursor c = new BoxCursor(this).reset(lowerBounds, higherBounds); c.next(); ){
+            for(int v = c.start(); v < c.end(); v++){
+                result[pos++] = v;
+            }
         }
         return result;
     }
@@ -344,10 +400,8 @@ public class GridGraph {
     public int toIndex(int[] position){
         assert position.length == nodesPerDim.length;
         int index = 0;
-        int fac = 1;
-        for(int i = position.length - 1; i >= 0; i--){
-            index += position[i]*fac;
-            fac *= nodesPerDim[i];
+        for(int i = 0; i < position.length; i++){
+            index += position[i]*strides[i];
         }
         return index;
     }
@@ -380,28 +434,170 @@ public class GridGraph {
     // Tested
     public int[] toPosition(int index){
         int[] pos = new int[nodesPerDim.length];
-        for(int i = 0; i < nodesPerDim.length; i++){
-            int j = nodesPerDim.length - i - 1;
-            int current_div = nodesPerDim[j];
-            pos[j] = index - (index / current_div)*current_div;
-            index = (index - pos[j]) / current_div;
-        }
+        toPosition(index, pos);
         return pos;
     }
+
+    /**
+     * Same as <code>toPosition(int)</code>, but writes the coordinates into the given array instead of allocating a new one.
+     * @param index Index in [n] (or code notation: [n-1]<sub>0</sub>).
+     * @param pos Array to store the grid graph coordinate vector in, with at least <code>getDim()</code> entries.
+     */
+    public void toPosition(int index, int[] pos){
+        for(int j = 0; j < nodesPerDim.length; j++){
+            int c = index / strides[j];
+            pos[j] = c;
+            index -= c*strides[j];
+        }
+    }
     
     /**
      * Same as <code>toPosition</code>, but uses Java's built-in modulo symbol.
      */
     public int[] toPositionV2(int index){
         int[] pos = new int[nodesPerDim.length];
-        for(int j = nodesPerDim.length - 1; j >= 0; j--){
-            int current_div = nodesPerDim[j];
-            pos[j] = index % current_div;
-            index = (index - pos[j]) / current_div;
+        for(int j = 0; j < nodesPerDim.length; j++){
+            pos[j] = (index / strides[j]) % nodesPerDim[j];
         }
         return pos;
     }
-    
+
+    /**
+     * Defines the enumeration of the edges of this grid graph.<br>
+     * Every edge connects a vertex <code>node</code> with its successor <code>node + strides[dim]</code> along some dimension <code>dim</code>,
+     * so it is uniquely identified by the tuple (<code>node</code>, <code>dim</code>), where the coordinate of <code>node</code> in dimension <code>dim</code>
+     * is at most n<sub>dim</sub>-2.
+     * The edges are enumerated dimension by dimension, and inside each dimension along the enumeration scheme of their first vertex,
+     * s.t. this function implements a bijection to [m] (or code notation: [m-1]<sub>0</sub>).<br>
+     * <br>
+     * Example: Let G be a grid graph with dimensions <code>[2,3]</code>.<br>
+     * This function will yield the following bijection for G:<br>
+     * <code>
+     * &emsp; toEdgeIndex(0,0) == 0 &emsp; (edge 0 -- 3)<br>
+     * &emsp; toEdgeIndex(1,0) == 1 &emsp; (edge 1 -- 4)<br>
+     * &emsp; toEdgeIndex(2,0) == 2 &emsp; (edge 2 -- 5)<br>
+     * &emsp; toEdgeIndex(0,1) == 3 &emsp; (edge 0 -- 1)<br>
+     * &emsp; toEdgeIndex(1,1) == 4 &emsp; (edge 1 -- 2)<br>
+     * &emsp; toEdgeIndex(3,1) == 5 &emsp; (edge 3 -- 4)<br>
+     * &emsp; toEdgeIndex(4,1) == 6 &emsp; (edge 4 -- 5)<br>
+     * </code>
+     * @param node The first (i.e. lower) vertex of the edge, according to the enumeration scheme of {@link #toIndex(int[])}.
+     * @param dim The dimension along which the edge is directed.
+     * @return Enumerated index of the edge.
+     */
+    public int toEdgeIndex(int node, int dim){
+        int s = strides[dim];
+        int layer = s*nodesPerDim[dim];
+        int rem = node % layer;
+        assert rem < layer - s;
+        return edgeOffsets[dim] + (node / layer)*(layer - s) + rem;
+    }
+
+    /**
+     * Calculates the index of the edge between two vertices, according to the enumeration scheme of {@link #toEdgeIndex(int, int)}.
+     * The order of the vertices does not matter.
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @return Enumerated index of the edge, or -1 iff the vertices are not adjacent.
+     */
+    public int edgeIndexOf(int from, int to){
+        long key = edgeKeyOf(from, to);
+        return (key < 0) ? -1 : edgeKeyToIndex(key);
+    }
+
+    /**
+     * Inverse function of <code>toEdgeIndex</code> for the dimension.
+     * @param edge Edge index in [m] (or code notation: [m-1]<sub>0</sub>).
+     * @return The dimension along which the edge is directed.
+     */
+    public int edgeDimension(int edge){
+        int dim = 0;
+        while(edge >= edgeOffsets[dim+1]) dim++;
+        return dim;
+    }
+
+    /**
+     * Inverse function of <code>toEdgeIndex</code> for the first vertex.
+     * It holds that <code>toEdgeIndex(edgeFrom(e), edgeDimension(e)) == e</code>.
+     * @param edge Edge index in [m] (or code notation: [m-1]<sub>0</sub>).
+     * @return The first (i.e. lower) vertex of the edge.
+     */
+    public int edgeFrom(int edge){
+        int dim = edgeDimension(edge);
+        int s = strides[dim];
+        int run = s*(nodesPerDim[dim]-1);
+        int local = edge - edgeOffsets[dim];
+        return (local / run)*(run + s) + local % run;
+    }
+
+    /**
+     * Returns the second (i.e. higher) vertex of an edge.
+     * @param edge Edge index in [m] (or code notation: [m-1]<sub>0</sub>).
+     * @return The second vertex of the edge.
+     */
+    public int edgeTo(int edge){
+        return edgeFrom(edge) + strides[edgeDimension(edge)];
+    }
+
+    /**
+     * Returns the 64-bit key of the edge between <code>node</code> and its successor along dimension <code>dim</code>.
+     * In contrast to {@link #toEdgeIndex(int, int)}, the key is not dense in [m], but it is calculated without any division
+     * and decoded with a single one, which makes it the cheaper identifier for sparse flows (see {@link SparseGridFlow}).
+     * The key is <code>node &#8729; d + dim</code>.
+     * @param node The first (i.e. lower) vertex of the edge.
+     * @param dim The dimension along which the edge is directed.
+     * @return The key of the edge.
+     */
+    public long toEdgeKey(int node, int dim){
+        return (long)node * nodesPerDim.length + dim;
+    }
+
+    /**
+     * Calculates the key of the edge between two vertices, according to {@link #toEdgeKey(int, int)}.
+     * The order of the vertices does not matter.
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @return The key of the edge, or -1 iff the vertices are not adjacent.
+     */
+    public long edgeKeyOf(int from, int to){
+        int low = (from < to) ? from : to;
+        int dif = ((from < to) ? to : from) - low;
+        for(int i = 0; i < nodesPerDim.length; i++){
+            if(nodesPerDim[i] > 1 && strides[i] == dif){
+                int layer = dif*nodesPerDim[i];
+                return (low % layer < layer - dif) ? toEdgeKey(low, i) : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inverse function of {@link #toEdgeKey(int, int)} for the first vertex.
+     * @param key Key of the edge.
+     * @return The first (i.e. lower) vertex of the edge.
+     */
+    public int edgeKeyFrom(long key){
+        return (int)(key / nodesPerDim.length);
+    }
+
+    /**
+     * Inverse function of {@link #toEdgeKey(int, int)} for the dimension.
+     * @param key Key of the edge.
+     * @return The dimension along which the edge is directed.
+     */
+    public int edgeKeyDimension(long key){
+        return (int)(key % nodesPerDim.length);
+    }
+
+    /**
+     * Converts an edge key to the index of the edge.
+     * @param key Key of the edge, see {@link #toEdgeKey(int, int)}.
+     * @return Index of the edge, see {@link #toEdgeIndex(int, int)}.
+     */
+    public int edgeKeyToIndex(long key){
+        return toEdgeIndex(edgeKeyFrom(key), edgeKeyDimension(key));
+    }
+
     /**
      * Checks if all given coordinate vectors are contained in the domain of this grid graph.
      * @param bounds Array containing the coordinate vectors to be checked.
@@ -425,22 +621,23 @@ public class GridGraph {
      * @return TikZ input for a visual representation of this grid graph.
      */
     public String tikz2D(){
-        String s = "";
+        StringBuilder s = new StringBuilder();
         //String s = "\\begin{tikzpicture}\n";
         //String s = "\\node (anchor) {};\n";
-        for(int i = 0; i < getN(); i++){
+        int n = getN();
+        for(int i = 0; i < n; i++){
             double scale = 2;
-            s += "\\node[roundnode, minimum size = 1cm] at ("+scale*toPosition(i)[0]+", "+scale*toPosition(i)[1]+") ("+i+") {\\textcolor{black}{"+i+"}};\n";
-            int[][] neighbours = getNeighbours(toPosition(i));
-            for(int[] n : neighbours){
-                int indexTo = toIndex(n);
-                if(indexTo < i){
-                    s += "\\draw ("+i+") -- ("+indexTo+");\n";
+            s.append("\\node[roundnode, minimum size = 1cm] at (").append(scale*coordinate(i, 0)).append(", ").append(scale*coordinate(i, 1))
+                    .append(") (").append(i).append(") {\\textcolor{black}{").append(i).append("}};\n");
+            int from = i;
+            forEachNeighbour(i, (to, edge, dim) -> {
+                if(to < from){
+                    s.append("\\draw (").append(from).append(") -- (").append(to).append(");\n");
                 }
-            }
+            });
         }
         //s += "\\end{tikzpicture}";
-        return s;
+        return s.toString();
     }
 //    public double getAlpha(){
 //        return getN();
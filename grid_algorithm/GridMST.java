@@ -183,20 +183,20 @@ public class GridMST {
         int n = G.getN();
         int i = 0;
         for (int k = n - 1; k >= 1; k--) {
-            int[] v = G.toPosition(k);
             /**
-             * The edge of the currently eliminated leaf v can be determined as
-             * in route(), which is why we calculate it with vertex grid coordinates.
-             * It could be done more efficiently with subtracting n_(i+1)*...*n_d, but
-             * this would be worse code design, as it needs to be consistent with the implementation
-             * of the toIndex function of the GridGraph class.
+             * The edge of the currently eliminated leaf k can be determined as
+             * in route(): it is directed along the first dimension i in which the
+             * coordinate of k is not 0. As i never decreases for decreasing k,
+             * only the coordinates that are actually compared are calculated.
+             * The predecessor u along dimension i is then given by the stride of
+             * dimension i, which is consistent with the enumeration scheme of the
+             * GridGraph class, and the edge (u,k) is the edge of u along dimension i.
              */
-            while(v[i] == 0){
+            while(G.coordinate(k, i) == 0){
                 i++;
             }
-            v[i]--;
-            int u = G.toIndex(v);
-            f.set(u, k, r.get(k));
+            int u = k - G.strides[i];
+            f.set(G.toEdgeIndex(u, i), r.get(k));
             r.set(u, r.get(u)+r.get(k));
             r.set(k, 0.);
         }
@@ -0,0 +1,69 @@
+package grid_algorithm;
+
+import java.util.Arrays;
+
+/**
+ * {@link DoubleStorage} backed by a Java array.
+ * @author Jonas Schulz
+ */
+final class HeapStorage extends DoubleStorage {
+    /**
+     * The entries.
+     */
+    final double[] a;
+
+    /**
+     * Standard constructor.
+     * @param a The array to be used as storage (not copied).
+     */
+    HeapStorage(double[] a){
+        this.a = a;
+    }
+
+    @Override
+    int length() {
+        return a.length;
+    }
+
+    @Override
+    double get(int i) {
+        return a[i];
+    }
+
+    @Override
+    void set(int i, double value) {
+        a[i] = value;
+    }
+
+    @Override
+    void add(int i, double value) {
+        a[i] += value;
+    }
+
+    @Override
+    void fill(double value) {
+        Arrays.fill(a, value);
+    }
+
+    @Override
+    void copyFrom(DoubleStorage other) {
+        double[] o = other.array();
+        if(o != null) System.arraycopy(o, 0, a, 0, a.length);
+        else other.copyTo(a);
+    }
+
+    @Override
+    StorageAllocator allocator() {
+        return StorageAllocator.HEAP;
+    }
+
+    @Override
+    double[] array() {
+        return a;
+    }
+
+    @Override
+    double[] toArray() {
+        return a.clone();
+    }
+}
@@ -0,0 +1,274 @@
+package grid_algorithm;
+
+import java.util.Arrays;
+
+/**
+ * {@link TreeTopology} calculated arithmetically instead of stored per node, for grids whose sides are all powers of two.
+ * <br>
+ * If each side n<sub>k</sub> = 2<sup>E<sub>k</sub></sup>, halving keeps all extents powers of two, and all hypercubes of a level t have the same extents
+ * e<sub>k</sub>(t). As the {@link SplitPolicy} only depends on the extents, each of them is split along the same D<sub>t</sub> dimensions;
+ * e.g. for {@link SplitPolicy#MIDPOINT}, e<sub>k</sub>(t) = 2<sup>E<sub>k</sub> - min(t, E<sub>k</sub>)</sup> and the split dimensions are those with E<sub>k</sub> &gt; t.
+ * Thus, level t has 2<sup>D<sub>0</sub>+...+D<sub>t-1</sub></sup> nodes, and the rank r of a node within its level is the concatenation of the
+ * child indices of {@link SplitPolicy#split(int[], int[], int, int[], int[])} along its path from the root, with the first split as the most significant bits.
+ * The bits of r that belong to dimension k form the index of the hypercube along k, which is extracted by {@link Integer#compress(int, int)}
+ * with a mask per level and dimension. Everything else follows from this index:
+ * the bounds are <code>index*e<sub>k</sub></code> and <code>(index+1)*e<sub>k</sub>-1</code>,
+ * the parent has rank <code>r &gt;&gt; D<sub>t-1</sub></code>, and the children have the ranks <code>(r &lt;&lt; D<sub>t</sub>) + c</code>.
+ * <br>
+ * Only O(levels &#8729; d) integers are stored, and the numbering is the same as that of {@link ExplicitTreeTopology}.
+ * @author Jonas Schulz
+ */
+class ImplicitTreeTopology implements TreeTopology {
+    /**
+     * Dimensionality of the grid.
+     */
+    final int d;
+    /**
+     * The policy the hypercubes are split by.
+     */
+    final SplitPolicy policy;
+    /**
+     * Number of nodes, including the root.
+     */
+    final int size;
+    /**
+     * E<sub>k</sub> = log<sub>2</sub>(n<sub>k</sub>) per dimension k.
+     */
+    final int[] log_sides;
+    /**
+     * log<sub>2</sub> of the strides of {@link GridGraph#strides}.
+     */
+    final int[] log_strides;
+    /**
+     * The nodes of level l (the root has level 0) are the nodes <code>level_offset[l]</code> to <code>level_offset[l+1]-1</code>.
+     */
+    final int[] level_offset;
+    /**
+     * D<sub>t</sub>, the number of dimensions split at level t. 0 for the last level.
+     */
+    final int[] splits;
+    /**
+     * Bits of the rank that belong to dimension k at level t, <code>masks[t*d+k]</code>.
+     */
+    final int[] masks;
+    /**
+     * log<sub>2</sub>(e<sub>k</sub>(t)), the extent of the hypercubes of level t along dimension k, <code>log_extents[t*d+k]</code>.
+     */
+    final int[] log_extents;
+    /**
+     * log<sub>2</sub> of the volume of the hypercubes of level t.
+     */
+    final int[] log_volumes;
+
+    /**
+     * Returns whether the implicit topology supports the grid, i.e. whether all sides are powers of two.
+     * @param g The grid graph.
+     * @return <code>true</code> iff all sides of g are powers of two.
+     */
+    static boolean supports(GridGraph g){
+        for(int n : g.nodesPerDim){
+            if(Integer.bitCount(n) != 1) return false;
+        }
+        // the ranks of the last level need log2(N) bits, and the node count up to 2N has to fit into an int
+        return Integer.numberOfTrailingZeros(g.getN()) < Integer.SIZE - 2;
+    }
+
+    /**
+     * Standard constructor, with the splits of {@link GridGraph#split(int[], int[])}.
+     * @param g The grid graph. All sides have to be powers of two.
+     * @throws IllegalArgumentException iff g is not supported, see {@link #supports(GridGraph)}.
+     */
+    ImplicitTreeTopology(GridGraph g){
+        this(g, SplitPolicy.MIDPOINT);
+    }
+
+    /**
+     * Constructor with the given split policy.
+     * The extents of the levels are determined by applying the policy to the hypercube of the first node of each level.
+     * @param g The grid graph. All sides have to be powers of two.
+     * @param policy The policy the hypercubes are split by.
+     * @throws IllegalArgumentException iff g is not supported, see {@link #supports(GridGraph)}.
+     */
+    ImplicitTreeTopology(GridGraph g, SplitPolicy policy){
+        if(!supports(g))
+            throw new IllegalArgumentException("The implicit tree topology requires all sides to be powers of two, but got "
+                    + Arrays.toString(g.nodesPerDim) + ".");
+        this.d = g.getDim();
+        this.policy = policy;
+        this.log_sides = new int[d];
+        this.log_strides = new int[d];
+        // each level halves at least one extent
+        int max_levels = 1;
+        for(int k = 0; k < d; k++){
+            log_sides[k] = Integer.numberOfTrailingZeros(g.nodesPerDim[k]);
+            log_strides[k] = Integer.numberOfTrailingZeros(g.strides[k]);
+            max_levels += log_sides[k];
+        }
+        int[] level_offset = new int[max_levels + 1];
+        int[] splits = new int[max_levels];
+        int[] masks = new int[max_levels * d];
+        int[] log_extents = new int[max_levels * d];
+        int[] log_volumes = new int[max_levels];
+        int[] lower = new int[d], higher = new int[d];
+        System.arraycopy(log_sides, 0, log_extents, 0, d);
+        int bits = 0, levels = 0;
+        for(int t = 0; ; t++){
+            level_offset[t+1] = level_offset[t] + (1 << bits);
+            for(int k = 0; k < d; k++){
+                higher[k] = (1 << log_extents[t*d+k]) - 1;
+                log_volumes[t] += log_extents[t*d+k];
+            }
+            int split = policy.split_mask(lower, higher);
+            splits[t] = Integer.bitCount(split);
+            if(split == 0){
+                levels = t + 1;
+                break;
+            }
+            // the child index is appended below the bits of the parent; split dimensions in ascending order
+            for(int k = 0, pos = 0; k < d; k++){
+                int mask = masks[t*d+k] << splits[t];
+                boolean halved = (split & (1 << k)) != 0;
+                if(halved) mask |= 1 << pos++;
+                masks[(t+1)*d+k] = mask;
+                log_extents[(t+1)*d+k] = log_extents[t*d+k] - (halved ? 1 : 0);
+            }
+            bits += splits[t];
+        }
+        this.level_offset = Arrays.copyOf(level_offset, levels + 1);
+        this.splits = Arrays.copyOf(splits, levels);
+        this.masks = Arrays.copyOf(masks, levels * d);
+        this.log_extents = Arrays.copyOf(log_extents, levels * d);
+        this.log_volumes = Arrays.copyOf(log_volumes, levels);
+        this.size = level_offset[levels];
+    }
+
+    /**
+     * Returns the level of node i.
+     * @param i The node.
+     * @return The level of node i.
+     */
+    int level(int i){
+        int lo = 0, hi = splits.length - 1;
+        while(lo < hi){
+            int mid = (lo + hi + 1) >>> 1;
+            if(level_offset[mid] <= i) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    @Override
+    public SplitPolicy policy(){
+        return policy;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public int levels(){
+        return splits.length;
+    }
+
+    @Override
+    public int level_offset(int l){
+        return level_offset[l];
+    }
+
+    @Override
+    public int child_begin(int i){
+        return child_begin(i, level(i));
+    }
+
+    @Override
+    public int child_begin(int i, int t){
+        if(t + 1 == splits.length) return size;
+        return level_offset[t+1] + ((i - level_offset[t]) << splits[t]);
+    }
+
+    @Override
+    public int child_end(int i){
+        return child_end(i, level(i));
+    }
+
+    @Override
+    public int child_end(int i, int t){
+        if(t + 1 == splits.length) return size;
+        return level_offset[t+1] + ((i - level_offset[t] + 1) << splits[t]);
+    }
+
+    @Override
+    public int parent(int i){
+        return parent(i, level(i));
+    }
+
+    @Override
+    public int parent(int i, int t){
+        if(i == 0) return -1;
+        return level_offset[t-1] + ((i - level_offset[t]) >>> splits[t-1]);
+    }
+
+    @Override
+    public int vertex(int i){
+        return vertex(i, level(i));
+    }
+
+    @Override
+    public int vertex(int i, int t){
+        if(t + 1 != splits.length) return -1;
+        int r = i - level_offset[t];
+        int v = 0;
+        for(int k = 0; k < d; k++){
+            v += Integer.compress(r, masks[t*d+k]) << log_strides[k];
+        }
+        return v;
+    }
+
+    @Override
+    public int leaf(int v){
+        int t = splits.length - 1;
+        int r = 0;
+        for(int k = 0; k < d; k++){
+            int coordinate = (v >>> log_strides[k]) & ((1 << log_sides[k]) - 1);
+            r |= Integer.expand(coordinate, masks[t*d+k]);
+        }
+        return level_offset[t] + r;
+    }
+
+    @Override
+    public int capacity(int i){
+        return capacity(i, level(i));
+    }
+
+    @Override
+    public int capacity(int i, int t){
+        int r = i - level_offset[t];
+        int total = 0;
+        for(int k = 0; k < d; k++){
+            int mask = masks[t*d+k];
+            int bits = r & mask;
+            // one cut side iff the hypercube does not touch the lower (index 0) or higher (index all ones) border
+            int fac = (bits != 0 ? 1 : 0) + (bits != mask ? 1 : 0);
+            total += fac << (log_volumes[t] - log_extents[t*d+k]);
+        }
+        return total;
+    }
+
+    @Override
+    public void bounds(int i, int[] lower, int[] higher){
+        bounds(i, level(i), lower, higher);
+    }
+
+    @Override
+    public void bounds(int i, int t, int[] lower, int[] higher){
+        int r = i - level_offset[t];
+        for(int k = 0; k < d; k++){
+            int log_extent = log_extents[t*d+k];
+            int index = Integer.compress(r, masks[t*d+k]);
+            lower[k] = index << log_extent;
+            higher[k] = lower[k] + (1 << log_extent) - 1;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package grid_algorithm;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Stencil kernels for the incidence matrix <i>B</i> of a {@link GridGraph}, i.e. the excess flows <i>B &#8729; f</i> of a flow
+ * and the potential differences <i>B<sup>T</sup> &#8729; p</i> of a vertex potential.
+ * <br>
+ * Along dimension k with stride s, the vertices form blocks of n<sub>k</sub>&#8729;s consecutive indices, namely the lines along k.
+ * Within the block starting at vertex <code>base</code>, the edge from v to v+s has the index <code>v + c</code> with the constant
+ * <code>c = edgeOffsets[k] + block&#8729;s&#8729;(n<sub>k</sub>-1) - base</code> of the block, see {@link GridGraph#toEdgeIndex(int, int)}.
+ * Thus, both operators are loops over consecutive vertices and consecutive edges, which the JIT compiler vectorises.
+ * <br>
+ * Both operators are gathers over the vertices: a vertex pulls the flows of its incident edges into its excess flow,
+ * and the edge from v to v+s is written by its lower end v. Thus, disjoint ranges of vertices write disjoint entries,
+ * and the ranges run in parallel without any synchronisation iff {@link #pool} is set.
+ * Each entry is summed up in the same order as by the sequential scatter along the edges, so the results do not depend on the pool.
+ * <br>
+ * The vertices are processed in blocks of consecutive vertices also without a pool, and all dimensions of a block
+ * are processed before the next block. The excess flows (or potentials) of a block thus stay in the cache across the d sweeps,
+ * and only the halo, i.e. the neighbours at distance s<sub>k</sub> of the outer dimensions, is read from outside the block,
+ * instead of streaming the whole vector through memory once per dimension. The block size does not change the results.
+ * Each operator has its own block size, {@link #chunk_size} and {@link #potential_chunk_size}, which can be set directly
+ * or are determined by a small probe once the operator has been compiled, see {@link #auto_tune}.
+ * @author Jonas Schulz
+ */
+final class IncidenceKernel {
+    /**
+     * The grid graph whose incidence matrix is applied.
+     */
+    final GridGraph g;
+    /**
+     * The pool on which the vertex ranges run in parallel, or <code>null</code> to run them on the calling thread.
+     */
+    final ForkJoinPool pool;
+    /**
+     * Number of consecutive vertices per block of <i>B &#8729; f</i>, which is also the unit of work of the parallel tasks.
+     * A block size of at least n processes each dimension in a single sweep over all vertices.
+     */
+    int chunk_size = 1 << 14;
+    /**
+     * Same as {@link #chunk_size}, for <i>B<sup>T</sup> &#8729; p</i>.
+     */
+    int potential_chunk_size = 1 << 14;
+    /**
+     * Whether the block size of each operator is determined by {@link #tune(int, Chunks.ChunkAction)}, namely at its call number
+     * {@link #TUNE_AFTER_CALLS}+1 with array storages, when the operator has been compiled by the JIT compiler.
+     * Only grids of at least {@link #TUNE_MIN_VERTICES} vertices are probed; smaller grids keep the default block sizes.
+     */
+    final boolean auto_tune;
+    /**
+     * Whether {@link #chunk_size} resp. {@link #potential_chunk_size} have been determined, s.t. each operator is probed at most once.
+     * The probes run under the lock of this kernel; the volatile flags publish the block sizes to concurrent callers.
+     */
+    volatile boolean excess_tuned = false, potential_tuned = false;
+    /**
+     * Number of calls of each operator before its probe. Guarded by the lock of this kernel.
+     */
+    int excess_calls = 0, potential_calls = 0;
+    /**
+     * Smallest and largest block size tried by {@link #tune(int, Chunks.ChunkAction)}, which tries every second power of two in between.
+     */
+    static final int TUNE_MIN_CHUNK = 1 << 10, TUNE_MAX_CHUNK = 1 << 16;
+    /**
+     * Number of vertices on which {@link #tune(int, Chunks.ChunkAction)} times each block size,
+     * i.e. a few blocks of the size of a second-level cache, and at least four blocks of {@link #TUNE_MAX_CHUNK}.
+     */
+    static final int TUNE_SAMPLE = 1 << 18;
+    /**
+     * Number of vertices from which on the grid is probed. The vectors of smaller grids mostly stay in the last-level cache,
+     * where the block size hardly matters.
+     */
+    static final int TUNE_MIN_VERTICES = 1 << 20;
+    /**
+     * Number of calls of an operator before its probe, s.t. the probe times compiled code instead of the interpreter.
+     */
+    static final int TUNE_AFTER_CALLS = 16;
+    /**
+     * Relative margin by which a block size has to be faster than the current one to replace it, s.t. timing noise keeps the default.
+     */
+    static final double TUNE_MARGIN = 0.1;
+    /**
+     * Number of timings per block size, of which the fastest one counts.
+     */
+    static final int TUNE_REPETITIONS = 3;
+
+    /**
+     * Standard constructor, for serial kernels with the default block sizes.
+     * @param g The grid graph whose incidence matrix is applied.
+     */
+    IncidenceKernel(GridGraph g){
+        this(g, null, false);
+    }
+
+    /**
+     * Constructor for kernels with their own settings, e.g. those of a {@link GridApproximation}.
+     * @param g The grid graph whose incidence matrix is applied.
+     * @param pool The pool to run the vertex ranges on, or <code>null</code>.
+     * @param auto_tune Whether to probe the block sizes, see {@link #auto_tune}.
+     */
+    IncidenceKernel(GridGraph g, ForkJoinPool pool, boolean auto_tune){
+        this.g = g;
+        this.pool = pool;
+        this.auto_tune = auto_tune;
+    }
+
+    /**
+     * Splits the vertices into blocks of <code>chunk_size</code> vertices and runs the action on each block,
+     * in parallel iff {@link #pool} is set and there is more than one block.
+     * @param chunk_size Number of vertices per block.
+     * @param action The action for each block.
+     */
+    private void for_ranges(int chunk_size, Chunks.ChunkAction action){
+        Chunks.run(pool, 0, g.getN(), chunk_size, action);
+    }
+
+    /**
+     * Calculates <i>B &#8729; f</i>.
+     * @param f The flow, with one entry per edge.
+     * @param b Storage for the excess flows, with one entry per vertex. Its previous entries are overwritten.
+     */
+    void excess_flows(DoubleStorage f, DoubleStorage b){
+        double[] flow = f.array(), excess = b.array();
+        if(flow != null && excess != null){
+            Chunks.ChunkAction kernel = (c, from, to) -> excess_flows(flow, excess, from, to);
+            if(auto_tune && !excess_tuned)
+                tune_excess(kernel);
+            for_ranges(chunk_size, kernel);
+        } else {
+            for_ranges(chunk_size, (c, from, to) -> excess_flows(f, b, from, to));
+        }
+    }
+
+    /**
+     * Counts a call of <i>B &#8729; f</i> and probes {@link #chunk_size} after {@link #TUNE_AFTER_CALLS} calls.
+     * @param kernel The operator on a range of vertices, for the arrays of the current call.
+     */
+    private synchronized void tune_excess(Chunks.ChunkAction kernel){
+        if(!excess_tuned && ++excess_calls > TUNE_AFTER_CALLS){
+            chunk_size = tune(chunk_size, kernel);
+            excess_tuned = true;
+        }
+    }
+
+    /**
+     * Counts a call of <i>B<sup>T</sup> &#8729; p</i> and probes {@link #potential_chunk_size} after {@link #TUNE_AFTER_CALLS} calls.
+     * @param kernel The operator on a range of vertices, for the arrays of the current call.
+     */
+    private synchronized void tune_potential(Chunks.ChunkAction kernel){
+        if(!potential_tuned && ++potential_calls > TUNE_AFTER_CALLS){
+            potential_chunk_size = tune(potential_chunk_size, kernel);
+            potential_tuned = true;
+        }
+    }
+
+    /**
+     * Determines the block size of an operator by a probe: the operator is applied to the first {@link #TUNE_SAMPLE} vertices in blocks of
+     * the current size and of 4<sup>j</sup>&#8729;{@link #TUNE_MIN_CHUNK} vertices up to {@link #TUNE_MAX_CHUNK}.
+     * The fastest block size is returned iff it beats the current one by {@link #TUNE_MARGIN}, otherwise the current one is kept.
+     * The probe runs on the calling thread, as the blocks are sized for the cache of a single core, and takes at most 5&#8729;{@link #TUNE_REPETITIONS}
+     * passes over the sample. It overwrites the results of the sample, which the caller calculates anew afterwards.
+     * @param current The current block size, which is kept for grids too small to be probed.
+     * @param kernel The operator on a range of vertices.
+     * @return The block size.
+     */
+    int tune(int current, Chunks.ChunkAction kernel){
+        if(g.getN() < TUNE_MIN_VERTICES)
+            return current;
+        long current_time = time(current, kernel), best_time = current_time;
+        int best = current;
+        for(int size = TUNE_MIN_CHUNK; size <= TUNE_MAX_CHUNK; size <<= 2){
+            if(size == current) continue;
+            long time = time(size, kernel);
+            if(time < best_time){
+                best_time = time;
+                best = size;
+            }
+        }
+        return (best_time < (1 - TUNE_MARGIN)*current_time) ? best : current;
+    }
+
+    /**
+     * Times an operator on the first {@link #TUNE_SAMPLE} vertices in blocks of the given size.
+     * @param size Number of vertices per block.
+     * @param kernel The operator on a range of vertices.
+     * @return The fastest of {@link #TUNE_REPETITIONS} timings, in nanoseconds.
+     */
+    private long time(int size, Chunks.ChunkAction kernel){
+        long time = Long.MAX_VALUE;
+        for(int r = 0; r < TUNE_REPETITIONS; r++){
+            long start = System.nanoTime();
+            for(int from = 0; from < TUNE_SAMPLE; from += size){
+                kernel.run(0, from, Math.min(TUNE_SAMPLE, from + size));
+            }
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        return time;
+    }
+
+    /**
+     * Calculates the excess flows of the vertices <code>from</code> to <code>to-1</code>.
+     * Per dimension, each vertex first adds the flow of the edge from its lower neighbour, and then subtracts the flow of the edge to its higher neighbour.
+     * The inner layers of each line do both in a single loop.
+     * @param flow The flow.
+     * @param excess The excess flows.
+     * @param from First vertex.
+     * @param to Vertex after the last vertex.
+     */
+    private void excess_flows(double[] flow, double[] excess, int from, int to){
+        Arrays.fill(excess, from, to, 0.);
+        for(int k = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int line = s*g.nodesPerDim[k];
+            int run = line - s;
+            if(run == 0) continue;
+            for(int base = (from / line) * line, block = from / line; base < to; base += line, block++){
+                int c = g.edgeOffsets[k] + block*run - base;
+                // first layer: only edges to the higher neighbours
+                int lo = Math.max(from, base), hi = Math.min(to, base + s);
+                for(int v = lo; v < hi; v++){
+                    excess[v] -= flow[v + c];
+                }
+                // inner layers: both edges
+                lo = Math.max(from, base + s);
+                hi = Math.min(to, base + run);
+                for(int v = lo; v < hi; v++){
+                    excess[v] = excess[v] + flow[v - s + c] - flow[v + c];
+                }
+                // last layer: only edges from the lower neighbours
+                lo = Math.max(from, Math.max(base + s, base + run));
+                hi = Math.min(to, base + line);
+                for(int v = lo; v < hi; v++){
+                    excess[v] += flow[v - s + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #excess_flows(double[], double[], int, int)}, for storages without a backing array.
+     * @param flow The flow.
+     * @param excess The excess flows.
+     * @param from First vertex.
+     * @param to Vertex after the last vertex.
+     */
+    private void excess_flows(DoubleStorage flow, DoubleStorage excess, int from, int to){
+        for(int v = from; v < to; v++){
+            excess.set(v, 0.);
+        }
+        for(int k = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int line = s*g.nodesPerDim[k];
+            int run = line - s;
+            if(run == 0) continue;
+            for(int base = (from / line) * line, block = from / line; base < to; base += line, block++){
+                int c = g.edgeOffsets[k] + block*run - base;
+                int lo = Math.max(from, base), hi = Math.min(to, base + s);
+                for(int v = lo; v < hi; v++){
+                    excess.add(v, -flow.get(v + c));
+                }
+                lo = Math.max(from, base + s);
+                hi = Math.min(to, base + run);
+                for(int v = lo; v < hi; v++){
+                    excess.set(v, excess.get(v) + flow.get(v - s + c) - flow.get(v + c));
+                }
+                lo = Math.max(from, Math.max(base + s, base + run));
+                hi = Math.min(to, base + line);
+                for(int v = lo; v < hi; v++){
+                    excess.add(v, flow.get(v - s + c));
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates <i>B<sup>T</sup> &#8729; p</i>, i.e. the edge from v to v+s gets the value <code>p[v+s] - p[v]</code>.
+     * @param p The potential, with one entry per vertex.
+     * @param f Storage for the potential differences, with one entry per edge. Its previous entries are overwritten.
+     */
+    void potential_differences(DoubleStorage p, DoubleStorage f){
+        double[] potential = p.array(), flow = f.array();
+        if(potential != null && flow != null){
+            Chunks.ChunkAction kernel = (c, from, to) -> potential_differences(potential, flow, from, to);
+            if(auto_tune && !potential_tuned)
+                tune_potential(kernel);
+            for_ranges(potential_chunk_size, kernel);
+        } else {
+            for_ranges(potential_chunk_size, (c, from, to) -> potential_differences(p, f, from, to));
+        }
+    }
+
+    /**
+     * Calculates the potential differences of the edges starting at the vertices <code>from</code> to <code>to-1</code>.
+     * @param potential The potential.
+     * @param flow The potential differences.
+     * @param from First vertex.
+     * @param to Vertex after the last vertex.
+     */
+    private void potential_differences(double[] potential, double[] flow, int from, int to){
+        for(int k = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int line = s*g.nodesPerDim[k];
+            int run = line - s;
+            if(run == 0) continue;
+            for(int base = (from / line) * line, block = from / line; base < to; base += line, block++){
+                int c = g.edgeOffsets[k] + block*run - base;
+                int lo = Math.max(from, base), hi = Math.min(to, base + run);
+                for(int v = lo; v < hi; v++){
+                    flow[v + c] = potential[v + s] - potential[v];
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #potential_differences(double[], double[], int, int)}, for storages without a backing array.
+     * @param potential The potential.
+     * @param flow The potential differences.
+     * @param from First vertex.
+     * @param to Vertex after the last vertex.
+     */
+    private void potential_differences(DoubleStorage potential, DoubleStorage flow, int from, int to){
+        for(int k = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int line = s*g.nodesPerDim[k];
+            int run = line - s;
+            if(run == 0) continue;
+            for(int base = (from / line) * line, block = from / line; base < to; base += line, block++){
+                int c = g.edgeOffsets[k] + block*run - base;
+                int lo = Math.max(from, base), hi = Math.min(to, base + run);
+                for(int v = lo; v < hi; v++){
+                    flow.set(v + c, potential.get(v + s) - potential.get(v));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package grid_algorithm;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * {@link TreeTopology} read from a snapshot file that is mapped into memory read-only.
+ * <br>
+ * A snapshot stores the arrays of {@link ExplicitTreeTopology} in a compact binary format, see {@link #write(TreeTopology, GridGraph, Path)}.
+ * Loading it only maps the file, s.t. a solver can start without building the tree, and all processes that map the same file
+ * share one copy of it in the page cache of the operating system.
+ * Use {@link #snapshot(GridGraph, SplitPolicy, Path)} to keep the snapshots of all grids in one directory, keyed by the grid dimensions and the split policy.
+ * <br>
+ * All numbers are 32-bit little-endian integers. The file starts with the header
+ * <code>[MAGIC, VERSION, policy, d, n<sub>0</sub>, ..., n<sub>d-1</sub>, size, levels]</code>, followed by the arrays
+ * <code>level_offset</code> (levels+1 entries), <code>child_offset</code> (size+1), <code>parent</code> (size), <code>vertex</code> (size),
+ * <code>leaf</code> (N), <code>capacity</code> (size), <code>lower_bounds</code> (size&#8729;d) and <code>higher_bounds</code> (size&#8729;d),
+ * with the same contents as the fields of {@link ExplicitTreeTopology}.
+ * @author Jonas Schulz
+ */
+final class MappedTreeTopology implements TreeTopology {
+    /**
+     * First integer of each snapshot, "GATS" in ASCII.
+     */
+    static final int MAGIC = 0x47415453;
+    /**
+     * Version of the format; snapshots of other versions are rejected.
+     */
+    static final int VERSION = 1;
+    /**
+     * Layout of all numbers in a snapshot.
+     */
+    static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The mapped file.
+     */
+    final MemorySegment segment;
+    /**
+     * Dimensionality of the grid.
+     */
+    final int d;
+    /**
+     * The policy the hypercubes are split by, stored in the header by its ordinal.
+     */
+    final SplitPolicy policy;
+    /**
+     * Number of nodes, including the root.
+     */
+    final int size;
+    /**
+     * Number of levels.
+     */
+    final int levels;
+    /**
+     * Byte offsets of the arrays within {@link #segment}.
+     */
+    final long level_offset, child_offset, parent, vertex, leaf, capacity, lower_bounds, higher_bounds;
+
+    /**
+     * Maps the given snapshot and checks that it belongs to the given grid.
+     * The mapping is released when this topology is no longer reachable.
+     * @param g The grid graph.
+     * @param file The snapshot, as written by {@link #write(TreeTopology, GridGraph, Path)}.
+     * @throws IOException iff the file can not be read, or it is no complete snapshot of this version.
+     * @throws IllegalArgumentException iff the snapshot belongs to another grid.
+     */
+    MappedTreeTopology(GridGraph g, Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            this.segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto());
+        }
+        if(segment.byteSize() < 16 || segment.get(INT, 0) != MAGIC)
+            throw new IOException("Not a tree snapshot: " + file);
+        if(segment.get(INT, 4) != VERSION)
+            throw new IOException("Unsupported tree snapshot version " + segment.get(INT, 4) + ": " + file);
+        int policy = segment.get(INT, 8);
+        if(policy < 0 || policy >= SplitPolicy.values().length)
+            throw new IOException("Unknown split policy " + policy + " of tree snapshot: " + file);
+        this.policy = SplitPolicy.values()[policy];
+        this.d = segment.get(INT, 12);
+        if(d != g.getDim())
+            throw new IllegalArgumentException("The tree snapshot " + file + " does not belong to the grid " + Arrays.toString(g.nodesPerDim) + ".");
+        long header = 16 + 4L*d;
+        if(segment.byteSize() < header + 8)
+            throw new IOException("Truncated tree snapshot: " + file);
+        if(!Arrays.equals(g.nodesPerDim, segment.asSlice(16, 4L*d).toArray(INT)))
+            throw new IllegalArgumentException("The tree snapshot " + file + " does not belong to the grid " + Arrays.toString(g.nodesPerDim) + ".");
+        this.size = segment.get(INT, header);
+        this.levels = segment.get(INT, header + 4);
+        if(size < 1 || levels < 1)
+            throw new IOException("Corrupt tree snapshot: " + file);
+        this.level_offset = header + 8;
+        this.child_offset = level_offset + 4L*(levels + 1);
+        this.parent = child_offset + 4L*(size + 1);
+        this.vertex = parent + 4L*size;
+        this.leaf = vertex + 4L*size;
+        this.capacity = leaf + 4L*g.getN();
+        this.lower_bounds = capacity + 4L*size;
+        this.higher_bounds = lower_bounds + 4L*size*d;
+        if(segment.byteSize() != higher_bounds + 4L*size*d)
+            throw new IOException("Truncated tree snapshot: " + file);
+    }
+
+    /**
+     * Writes a snapshot of the given topology.
+     * The snapshot is written to a temporary file first and then moved to <code>file</code>,
+     * s.t. concurrent readers never see an incomplete snapshot.
+     * @param topology The topology, e.g. an {@link ExplicitTreeTopology}.
+     * @param g The grid graph of the topology.
+     * @param file The target file. An existing file is replaced.
+     * @throws IOException iff the file can not be written.
+     */
+    static void write(TreeTopology topology, GridGraph g, Path file) throws IOException {
+        int d = g.getDim(), size = topology.size(), levels = topology.levels(), n = g.getN();
+        long ints = 6 + d + (levels + 1) + (size + 1) + 3L*size + n + 2L*size*d;
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    Arena arena = Arena.ofConfined()){
+                MemorySegment out = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4*ints, arena);
+                long pos = 0;
+                for(int x : new int[]{MAGIC, VERSION, topology.policy().ordinal(), d}){
+                    out.set(INT, pos, x); pos += 4;
+                }
+                for(int k = 0; k < d; k++){
+                    out.set(INT, pos, g.nodesPerDim[k]); pos += 4;
+                }
+                out.set(INT, pos, size); pos += 4;
+                out.set(INT, pos, levels); pos += 4;
+                for(int l = 0; l <= levels; l++){
+                    out.set(INT, pos, topology.level_offset(l)); pos += 4;
+                }
+                for(int i = 0; i < size; i++){
+                    out.set(INT, pos, topology.child_begin(i)); pos += 4;
+                }
+                out.set(INT, pos, size); pos += 4;
+                for(int i = 0; i < size; i++){
+                    out.set(INT, pos, topology.parent(i)); pos += 4;
+                }
+                for(int i = 0; i < size; i++){
+                    out.set(INT, pos, topology.vertex(i)); pos += 4;
+                }
+                for(int v = 0; v < n; v++){
+                    out.set(INT, pos, topology.leaf(v)); pos += 4;
+                }
+                for(int i = 0; i < size; i++){
+                    out.set(INT, pos, topology.capacity(i)); pos += 4;
+                }
+                int[] lower = new int[d], higher = new int[d];
+                long higher_pos = pos + 4L*size*d;
+                for(int i = 0; i < size; i++){
+                    topology.bounds(i, lower, higher);
+                    MemorySegment.copy(lower, 0, out, INT, pos, d);
+                    MemorySegment.copy(higher, 0, out, INT, higher_pos, d);
+                    pos += 4L*d;
+                    higher_pos += 4L*d;
+                }
+                out.force();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Returns the file name of the snapshot of the given grid and split policy, e.g. <code>tree-16x16-midpoint-v1.bin</code>.
+     * @param g The grid graph.
+     * @param policy The split policy.
+     * @return The file name.
+     */
+    static String file_name(GridGraph g, SplitPolicy policy){
+        StringBuilder s = new StringBuilder("tree-");
+        for(int k = 0; k < g.nodesPerDim.length; k++){
+            if(k > 0) s.append('x');
+            s.append(g.nodesPerDim[k]);
+        }
+        return s.append('-').append(policy.name().toLowerCase()).append("-v").append(VERSION).append(".bin").toString();
+    }
+
+    /**
+     * Maps the snapshot of the given grid and split policy from the directory, and creates it there first iff it does not exist yet.
+     * @param g The grid graph.
+     * @param policy The split policy.
+     * @param directory Directory of the snapshots, see {@link #file_name(GridGraph, SplitPolicy)}. It is created iff necessary.
+     * @return The mapped topology.
+     * @throws IOException iff the snapshot can not be read or written.
+     */
+    static MappedTreeTopology snapshot(GridGraph g, SplitPolicy policy, Path directory) throws IOException {
+        Path file = directory.resolve(file_name(g, policy));
+        if(!Files.exists(file)){
+            Files.createDirectories(directory);
+            write(new ExplicitTreeTopology(g, policy), g, file);
+        }
+        return new MappedTreeTopology(g, file);
+    }
+
+    @Override
+    public SplitPolicy policy(){
+        return policy;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public int levels(){
+        return levels;
+    }
+
+    @Override
+    public int level_offset(int l){
+        return segment.get(INT, level_offset + 4L*l);
+    }
+
+    @Override
+    public int child_begin(int i){
+        return segment.get(INT, child_offset + 4L*i);
+    }
+
+    @Override
+    public int child_end(int i){
+        return segment.get(INT, child_offset + 4L*(i + 1));
+    }
+
+    @Override
+    public int parent(int i){
+        return segment.get(INT, parent + 4L*i);
+    }
+
+    @Override
+    public int vertex(int i){
+        return segment.get(INT, vertex + 4L*i);
+    }
+
+    @Override
+    public int leaf(int v){
+        return segment.get(INT, leaf + 4L*v);
+    }
+
+    @Override
+    public int capacity(int i){
+        return segment.get(INT, capacity + 4L*i);
+    }
+
+    @Override
+    public void bounds(int i, int[] lower, int[] higher){
+        MemorySegment.copy(segment, INT, lower_bounds + 4L*i*d, lower, 0, d);
+        MemorySegment.copy(segment, INT, higher_bounds + 4L*i*d, higher, 0, d);
+    }
+}
@@ -0,0 +1,61 @@
+package grid_algorithm;
+
+import java.lang.foreign.Arena;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * {@link StorageAllocator} for {@link OffHeapStorage}, i.e. for vectors outside of the Java heap.
+ * All storages of an arena share one lifetime, which usually is a single solve:
+ * closing the arena frees all of its native memory at once and invalidates all storages allocated by it.
+ * Released storages are kept in a pool and reused by later allocations of the same length,
+ * s.t. temporary vectors (like the probes of a line search) don't pile up in native memory.
+ * Releasing a storage twice throws an {@link IllegalStateException}, as two later allocations would share its memory.
+ * The arena is shared, i.e. its storages may be accessed by multiple threads.
+ * @author Jonas Schulz
+ */
+final class OffHeapArena implements StorageAllocator, AutoCloseable {
+    /**
+     * The native arena owning all allocated memory.
+     */
+    private final Arena arena = Arena.ofShared();
+    /**
+     * Released storages, grouped by their length.
+     */
+    private final HashMap<Integer, ArrayDeque<OffHeapStorage>> pool = new HashMap<>();
+
+    @Override
+    public synchronized DoubleStorage allocate(int length) {
+        ArrayDeque<OffHeapStorage> free = pool.get(length);
+        if(free != null && !free.isEmpty()){
+            OffHeapStorage s = free.pop();
+            s.released = false;
+            s.fill(0.);
+            return s;
+        }
+        // native memory obtained from an arena is zero-initialized
+        return new OffHeapStorage(arena.allocate(8L*length, 8), length, this);
+    }
+
+    @Override
+    public synchronized void release(DoubleStorage storage) {
+        if(!(storage instanceof OffHeapStorage) || ((OffHeapStorage)storage).arena != this)
+            throw new IllegalArgumentException("The storage was not allocated by this arena.");
+        OffHeapStorage s = (OffHeapStorage)storage;
+        // a second release would hand the same segment to two later allocations
+        if(s.released)
+            throw new IllegalStateException("The storage has already been released.");
+        s.released = true;
+        pool.computeIfAbsent(s.length(), l -> new ArrayDeque<>()).push(s);
+    }
+
+    /**
+     * Frees all native memory of this arena.
+     * Storages allocated by this arena must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        pool.clear();
+        arena.close();
+    }
+}
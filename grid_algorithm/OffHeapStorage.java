@@ -0,0 +1,94 @@
+package grid_algorithm;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * {@link DoubleStorage} backed by a native {@link MemorySegment} outside of the Java heap.
+ * The segment is owned by an {@link OffHeapArena}; closing the arena invalidates this storage.
+ * @author Jonas Schulz
+ */
+final class OffHeapStorage extends DoubleStorage {
+    /**
+     * The native memory holding the entries.
+     */
+    final MemorySegment segment;
+    /**
+     * Number of entries.
+     */
+    final int length;
+    /**
+     * The arena owning {@link #segment}.
+     */
+    final OffHeapArena arena;
+    /**
+     * Whether this storage is in the pool of its arena, i.e. released and not yet reallocated. Guarded by the arena.
+     */
+    boolean released = false;
+
+    /**
+     * Standard constructor.
+     * @param segment The native memory, with space for at least <code>length</code> doubles.
+     * @param length Number of entries.
+     * @param arena The arena owning <code>segment</code>.
+     */
+    OffHeapStorage(MemorySegment segment, int length, OffHeapArena arena){
+        this.segment = segment;
+        this.length = length;
+        this.arena = arena;
+    }
+
+    @Override
+    int length() {
+        return length;
+    }
+
+    @Override
+    double get(int i) {
+        return segment.getAtIndex(ValueLayout.JAVA_DOUBLE, i);
+    }
+
+    @Override
+    void set(int i, double value) {
+        segment.setAtIndex(ValueLayout.JAVA_DOUBLE, i, value);
+    }
+
+    @Override
+    void fill(double value) {
+        if(value == 0.){
+            segment.fill((byte)0);
+        } else {
+            for(int i = 0; i < length; i++){
+                set(i, value);
+            }
+        }
+    }
+
+    @Override
+    void copyFrom(DoubleStorage other) {
+        if(other instanceof OffHeapStorage){
+            MemorySegment.copy(((OffHeapStorage)other).segment, 0, segment, 0, 8L*length);
+        } else if(other.array() != null){
+            MemorySegment.copy(other.array(), 0, segment, ValueLayout.JAVA_DOUBLE, 0, length);
+        } else {
+            super.copyFrom(other);
+        }
+    }
+
+    @Override
+    void copyTo(double[] out) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_DOUBLE, 0, out, 0, length);
+    }
+
+    @Override
+    double[] toArray() {
+        double[] a = new double[length];
+        copyTo(a);
+        return a;
+    }
+
+    @Override
+    StorageAllocator allocator() {
+        return arena;
+    }
+}
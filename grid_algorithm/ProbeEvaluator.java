@@ -0,0 +1,123 @@
+package grid_algorithm;
+
+/**
+ * Evaluates the potential <i>&phi;</i> for the probes of the line search in {@link GridApproximation}
+ * without allocating any flows or demands.
+ * Instead of cloning the flow for each probe <i>f + h &#8729; sgn(&nabla;&phi;)</i> and allocating the excess flows
+ * and the residual demand, the evaluator writes into scratch buffers that are allocated once per solve.
+ * An evaluator is not thread-safe, and {@link #potential(GridFlow, double, GridFlow, GridDemand)} also uses the approximator tree of its {@link GridApproximation}.
+ * For concurrent probes, each probe uses its own evaluator of {@link #workers(int)} with
+ * {@link #potential(GridFlow, double, GridFlow, GridDemand, IncidenceKernel)}, which keeps the tree part in the scratch buffer of the evaluator.
+ * @author Jonas Schulz
+ */
+class ProbeEvaluator {
+    /**
+     * The algorithm instance whose potential is evaluated.
+     */
+    final GridApproximation ga;
+    /**
+     * Scratch buffer for the probed flow <i>f + h &#8729; sgn(&nabla;&phi;)</i>.
+     */
+    final GridFlow probe;
+    /**
+     * Scratch buffer for the excess flows <i>Bf</i>, which is turned into the residual demand <i>b - Bf</i> in-place.
+     */
+    final GridDemand residual;
+    /**
+     * Scratch buffer for the excess flows and congestions of the tree nodes at a concurrent probe.
+     */
+    final double[] tree;
+    /**
+     * Allocator of the scratch buffers, also used for {@link #workers}.
+     */
+    final StorageAllocator allocator;
+    /**
+     * Evaluators of the concurrent probes, see {@link #workers(int)}.
+     */
+    ProbeEvaluator[] workers = new ProbeEvaluator[0];
+
+    /**
+     * Standard constructor.
+     * @param ga The algorithm instance whose potential is evaluated.
+     * @param allocator Allocator for the scratch buffers, usually the allocator of the solve.
+     */
+    ProbeEvaluator(GridApproximation ga, StorageAllocator allocator){
+        this.ga = ga;
+        this.probe = new GridFlow(ga.g, allocator);
+        this.residual = new GridDemand(ga.g, allocator);
+        this.tree = new double[ga.t.size];
+        this.allocator = allocator;
+    }
+
+    /**
+     * Calculates <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i>.
+     * @param flow <i>f</i>, the flow.
+     * @param h <i>h</i>, the step size.
+     * @param gradient <i>&nabla;&phi;</i>, the potential gradient.
+     * @param demand <i>b</i>, the demand.
+     * @return <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i>.
+     */
+    double potential(GridFlow flow, double h, GridFlow gradient, GridDemand demand){
+        ga.flow_f_plus_h_gradsignum(flow, h, gradient, probe);
+        return potential(probe, demand, probe.lmax_shifted());
+    }
+
+    /**
+     * Calculates <i>&phi;(f) = lmax(f) + lmax(2&alpha;R(b-Bf))</i>, with <i>lmax(f)</i> already given.
+     * @param flow <i>f</i>.
+     * @param demand <i>b</i>.
+     * @param pot_graph <i>lmax(f)</i>.
+     * @return <i>&phi;(f)</i>.
+     */
+    double potential(GridFlow flow, GridDemand demand, double pot_graph){
+        flow.calculateExcessFlows(residual, ga.incidence());
+        GridDemand.subtract(demand, residual, residual);
+        return ga.potential_residual(pot_graph, residual);
+    }
+
+    /**
+     * Calculates <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i> like {@link #potential(GridFlow, double, GridFlow, GridDemand)}, but without modifying
+     * the approximator tree or any fields of the {@link GridApproximation}, s.t. concurrent calls on distinct evaluators are safe.
+     * @param flow <i>f</i>, the flow.
+     * @param h <i>h</i>, the step size.
+     * @param gradient <i>&nabla;&phi;</i>, the potential gradient.
+     * @param demand <i>b</i>, the demand.
+     * @param kernel The incidence kernels of the solve, see {@link GridApproximation#incidence()}.
+     * @return <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i>.
+     */
+    double potential(GridFlow flow, double h, GridFlow gradient, GridDemand demand, IncidenceKernel kernel){
+        ga.flow_f_plus_h_gradsignum(flow, h, gradient, probe);
+        probe.calculateExcessFlows(residual, kernel);
+        GridDemand.subtract(demand, residual, residual);
+        return probe.lmax_shifted() + ga.t.lmax_shifted_2alpha_congestion(residual, tree);
+    }
+
+    /**
+     * Returns at least <code>k</code> evaluators for concurrent probes, each with its own scratch buffers.
+     * The evaluators are allocated on first use, with the allocator of this evaluator, and kept for the following calls.
+     * This method itself is not thread-safe; call it before the probes are distributed.
+     * @param k Number of concurrent probes.
+     * @return Array of at least <code>k</code> distinct evaluators.
+     */
+    ProbeEvaluator[] workers(int k){
+        if(workers.length < k){
+            ProbeEvaluator[] evaluators = new ProbeEvaluator[k];
+            System.arraycopy(workers, 0, evaluators, 0, workers.length);
+            for(int i = workers.length; i < k; i++)
+                evaluators[i] = new ProbeEvaluator(ga, allocator);
+            workers = evaluators;
+        }
+        return workers;
+    }
+
+    /**
+     * Hands the scratch buffers back to their allocator, including those of the {@link #workers(int)}.
+     * The evaluator must not be used afterwards.
+     */
+    void release(){
+        probe.release();
+        residual.release();
+        for(ProbeEvaluator worker : workers)
+            worker.release();
+    }
+}
@@ -0,0 +1,127 @@
+package grid_algorithm;
+
+/**
+ * Kernels for the symmetric softmax terms of the potential, i.e. the sums
+ * &sum;<sub>i</sub> e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>+e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>
+ * of <i>lmax</i> and the gradient numerators e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>-e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>.
+ * These are the exp-bound hot paths of {@link GridFlow} and {@link GridApproximatorTree}.
+ * Use {@link #INSTANCE}, which is the SIMD implementation {@link VectorSoftmaxKernel} iff the module
+ * <code>jdk.incubator.vector</code> is available (e.g. via <code>--add-modules jdk.incubator.vector</code>),
+ * and the scalar implementation {@link #SCALAR} otherwise.
+ * @author Jonas Schulz
+ */
+interface SoftmaxKernel {
+    /**
+     * Calculates &sum;<sub>i</sub> e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>+e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>.
+     * @param x The values x<sub>i</sub>.
+     * @param length Number of values to be used, starting at index 0.
+     * @param s Scale factor s of all values.
+     * @param shift The shift to be <b>added</b> to all exponents.
+     * @return &sum;<sub>i</sub> e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>+e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>.
+     */
+    default double sum_exp_sym(double[] x, int length, double s, double shift){
+        return sum_exp_sym(x, 0, length, s, shift);
+    }
+
+    /**
+     * Same as {@link #sum_exp_sym(double[], int, double, double)}, but for the values <code>x[from]</code> to <code>x[to-1]</code>.
+     * @param x The values x<sub>i</sub>.
+     * @param from First index to be used.
+     * @param to Index after the last index to be used.
+     * @param s Scale factor s of all values.
+     * @param shift The shift to be <b>added</b> to all exponents.
+     * @return &sum;<sub>i</sub> e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>+e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>.
+     */
+    double sum_exp_sym(double[] x, int from, int to, double s, double shift);
+
+    /**
+     * Stores e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>-e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup> in <code>out[i]</code>,
+     * and calculates the sum of <i>lmax</i> on the way.
+     * @param x The values x<sub>i</sub>.
+     * @param out Array to store the results in. May be <code>x</code> itself.
+     * @param length Number of values to be used, starting at index 0.
+     * @param s Scale factor s of all values.
+     * @param shift The shift to be <b>added</b> to all exponents.
+     * @return &sum;<sub>i</sub> e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>+e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>.
+     */
+    default double diff_exp_sym(double[] x, double[] out, int length, double s, double shift){
+        return diff_exp_sym(x, out, 0, length, s, shift);
+    }
+
+    /**
+     * Same as {@link #diff_exp_sym(double[], double[], int, double, double)}, but for the values <code>x[from]</code> to <code>x[to-1]</code>,
+     * whose results are stored at the same indices of <code>out</code>.
+     * @param x The values x<sub>i</sub>.
+     * @param out Array to store the results in. May be <code>x</code> itself.
+     * @param from First index to be used.
+     * @param to Index after the last index to be used.
+     * @param s Scale factor s of all values.
+     * @param shift The shift to be <b>added</b> to all exponents.
+     * @return &sum;<sub>i</sub> e<sup>s&#8729;x<sub>i</sub>+<code>shift</code></sup>+e<sup>-s&#8729;x<sub>i</sub>+<code>shift</code></sup>.
+     */
+    double diff_exp_sym(double[] x, double[] out, int from, int to, double s, double shift);
+
+    /**
+     * Divides the first <code>length</code> values by <code>d</code> (in-place).
+     * @param x The values.
+     * @param length Number of values to be used, starting at index 0.
+     * @param d The divisor.
+     */
+    void divide(double[] x, int length, double d);
+
+    /**
+     * Scalar implementation, used iff the Vector API is not available.
+     */
+    SoftmaxKernel SCALAR = new SoftmaxKernel() {
+        @Override
+        public double sum_exp_sym(double[] x, int from, int to, double s, double shift) {
+            double sum = 0;
+            for(int i = from; i < to; i++){
+                double sx = x[i] * s;
+                sum += Math.exp(sx + shift) + Math.exp((-sx) + shift);
+            }
+            return sum;
+        }
+
+        @Override
+        public double diff_exp_sym(double[] x, double[] out, int from, int to, double s, double shift) {
+            double sum = 0;
+            for(int i = from; i < to; i++){
+                double sx = x[i] * s;
+                double exp1 = Math.exp(sx + shift);
+                double exp2 = Math.exp((-sx) + shift);
+                sum += exp1 + exp2;
+                out[i] = exp1 - exp2;
+            }
+            return sum;
+        }
+
+        @Override
+        public void divide(double[] x, int length, double d) {
+            for(int i = 0; i < length; i++){
+                x[i] /= d;
+            }
+        }
+    };
+
+    /**
+     * The kernel to be used, see {@link SoftmaxKernel}.
+     */
+    SoftmaxKernel INSTANCE = select();
+
+    /**
+     * Selects the SIMD kernel iff the module <code>jdk.incubator.vector</code> is present, else the scalar kernel.
+     * The SIMD kernel is loaded reflectively, s.t. this interface can be loaded without the module.
+     * @return The kernel to be used.
+     */
+    private static SoftmaxKernel select(){
+        if(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()){
+            try {
+                return (SoftmaxKernel) Class.forName("grid_algorithm.VectorSoftmaxKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                // fall through to the scalar kernel
+            }
+        }
+        return SCALAR;
+    }
+}
@@ -0,0 +1,170 @@
+package grid_algorithm;
+
+import project_utils.LongDoubleHashMap;
+import project_utils.Tuple;
+
+/**
+ * This class represents sparse flows for grid graphs, i.e. flows with only few non-zero edges.
+ * In contrast to {@link GridFlow}, whose memory is always linear in m, the entries are stored in a
+ * {@link LongDoubleHashMap} from the 64-bit edge keys of {@link GridGraph#toEdgeKey(int, int)} to the flow values.
+ * Use {@link #toGridFlow()} to switch to the dense representation for the algorithms of {@link GridApproximation}.
+ * @author Jonas Schulz
+ */
+public class SparseGridFlow {
+    /**
+     * The grid graph related to this flow.
+     */
+    GridGraph g;
+    /**
+     * The non-zero entries of this flow, keyed by {@link GridGraph#toEdgeKey(int, int)}.
+     * An entry f<sub>e</sub> &gt; 0 denotes flow from the lower to the higher vertex of the edge <i>e</i>.
+     */
+    LongDoubleHashMap entries;
+
+    /**
+     * Standard constructor.
+     * @param g The graph related to this flow.
+     */
+    public SparseGridFlow(GridGraph g){
+        this.g = g;
+        this.entries = new LongDoubleHashMap();
+    }
+
+    /**
+     * Constructs the sparse representation of a dense flow.
+     * Only the non-zero entries of <code>f</code> are stored.
+     * @param f The dense flow.
+     */
+    public SparseGridFlow(GridFlow f){
+        this(f.g);
+        for(int e = 0; e < f.m; e++){
+            double f_e = f.entries.get(e);
+            if(f_e != 0.){
+                entries.put(g.toEdgeKey(g.edgeFrom(e), g.edgeDimension(e)), f_e);
+            }
+        }
+    }
+
+    /**
+     * Returns the key of the edge (<code>from,to</code>).
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @return The key of this edge, see {@link GridGraph#toEdgeKey(int, int)}.
+     * @throws IllegalArgumentException iff <code>from</code> and <code>to</code> are not adjacent.
+     */
+    long edgeKey(int from, int to){
+        long key = g.edgeKeyOf(from, to);
+        if(key < 0)
+            throw new IllegalArgumentException(String.format("Vertices %d and %d are not adjacent.", from, to));
+        return key;
+    }
+
+    /**
+     * Set f<sub>e</sub>= <code>value</code>, where e = (<code>from,to</code>).
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @param value Value to be assigned to the edge.
+     */
+    public void set(int from, int to, double value){
+        entries.put(edgeKey(from, to), (from > to) ? -value : value);
+    }
+
+    /**
+     * Add <code>value</code> to f<sub>e</sub>, where e = (<code>from,to</code>).
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @param value Value to be added to the edge.
+     */
+    public void add(int from, int to, double value){
+        entries.add(edgeKey(from, to), (from > to) ? -value : value);
+    }
+
+    /**
+     * Get f<sub>e</sub>, where e = (<code>from,to</code>).
+     * @param from First vertex of the edge.
+     * @param to Second vertex of the edge.
+     * @return f<sub>e</sub>, or 0 iff <code>from</code> and <code>to</code> are not adjacent.
+     */
+    public double get(int from, int to){
+        long key = g.edgeKeyOf(from, to);
+        return (key >= 0) ? ((from > to ? -1 : 1)*entries.get(key)) : 0.;
+    }
+
+    /**
+     * Returns the number of stored entries.
+     * @return Number of stored entries.
+     */
+    public int size(){
+        return entries.size();
+    }
+
+    /**
+     * Calculates <i>B &#8729; f</i> with:
+     * <ul>
+     * <li> <i>B</i> - the incidence matrix,</li>
+     * <li> <i>f</i> - the flow.</li>
+     * </ul>
+     * @return <i>B &#8729; f</i>
+     */
+    public GridDemand calculateExcessFlows(){
+        GridDemand b = new GridDemand(g);
+        entries.forEach((key, value) -> {
+            int from = g.edgeKeyFrom(key);
+            b.entries.add(from, -value);
+            b.entries.add(from + g.strides[g.edgeKeyDimension(key)], value);
+        });
+        return b;
+    }
+
+    /**
+     * Calculates the <i>l</i><sub>1</sub>-norm.
+     * @return &Vert; f &Vert;<sub>1</sub> = &sum;<sub>i</sub> &vert; f<sub>i</sub> &vert;.
+     */
+    public double l1(){
+        double[] sum = {0.};
+        entries.forEach((key, value) -> sum[0] += Math.abs(value));
+        return sum[0];
+    }
+
+    /**
+     * Calculates the <i>l</i><sub>&infin;</sub>-norm.
+     * @return &Vert f &Vert;<sub>&infin;</sub> = <i>max</i><sub>i </sub>{&vert; f<sub>i</sub> &vert;}.
+     */
+    public double linf(){
+        double[] max = {0.};
+        entries.forEach((key, value) -> max[0] = Math.max(max[0], Math.abs(value)));
+        return max[0];
+    }
+
+    /**
+     * Adds this flow to a dense flow (in-place).
+     * @param f The dense flow to add this flow to.
+     * @return <code>f</code>.
+     */
+    public GridFlow addTo(GridFlow f){
+        entries.forEach((key, value) -> f.entries.add(g.edgeKeyToIndex(key), value));
+        return f;
+    }
+
+    /**
+     * Returns the dense representation of this flow.
+     * @return This flow as {@link GridFlow}.
+     */
+    public GridFlow toGridFlow(){
+        return addTo(new GridFlow(g));
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("[\n");
+        entries.forEach((key, value) -> {
+            int from = g.edgeKeyFrom(key);
+            Tuple<Integer, Integer> i = new Tuple<>(from, from + g.strides[g.edgeKeyDimension(key)]);
+            s.append("\t").append(i).append(" :   ").append(value).append("\n");
+        });
+        return s.append("]").toString();
+    }
+}
@@ -0,0 +1,89 @@
+package grid_algorithm;
+
+/**
+ * Policy that determines along which dimensions the hypercubes of the {@link GridApproximatorTree} are split.
+ * Each selected dimension is halved as in {@link GridGraph#split(int[], int[])}, s.t. a hypercube split along D dimensions
+ * has 2<sup>D</sup> children, and the children are numbered by the same binary code: the j-th bit of the child index
+ * selects the higher half along the j-th selected dimension, in ascending order of the dimensions.
+ * @author Jonas Schulz
+ */
+public enum SplitPolicy {
+    /**
+     * Splits along each dimension with more than one hyperplane, as {@link GridGraph#split(int[], int[])} does.
+     * For strongly anisotropic grids, this yields long chains of thin hypercubes once the short dimensions are exhausted.
+     */
+    MIDPOINT {
+        @Override
+        int split_mask(int[] lowerBounds, int[] higherBounds){
+            int mask = 0;
+            for(int k = 0; k < lowerBounds.length; k++){
+                if(lowerBounds[k] < higherBounds[k]) mask |= 1 << k;
+            }
+            return mask;
+        }
+    },
+    /**
+     * Splits only along the longest dimensions, namely those whose extent is more than half of the longest extent.
+     * The hypercubes thus stay close to cubes with an aspect ratio of at most 2, also for strongly anisotropic grids.
+     * For cubic grids, this is the same as {@link #MIDPOINT}.
+     */
+    ASPECT_RATIO {
+        @Override
+        int split_mask(int[] lowerBounds, int[] higherBounds){
+            int longest = 0;
+            for(int k = 0; k < lowerBounds.length; k++){
+                longest = Math.max(longest, higherBounds[k] - lowerBounds[k] + 1);
+            }
+            int mask = 0;
+            for(int k = 0; k < lowerBounds.length; k++){
+                int extent = higherBounds[k] - lowerBounds[k] + 1;
+                if(extent > 1 && 2*extent > longest) mask |= 1 << k;
+            }
+            return mask;
+        }
+    };
+
+    /**
+     * Selects the dimensions along which the given hypercube is split.
+     * A hypercube is a leaf iff no dimension is selected, which is the case iff it contains a single vertex.
+     * @param lowerBounds Lower bounds of the hypercube.
+     * @param higherBounds Higher bounds of the hypercube.
+     * @return Bit mask of the selected dimensions, with bit k set iff the hypercube is split along dimension k.
+     */
+    abstract int split_mask(int[] lowerBounds, int[] higherBounds);
+
+    /**
+     * Counts the splits of the given hypercube.
+     * @param lowerBounds Lower bounds of the hypercube.
+     * @param higherBounds Higher bounds of the hypercube.
+     * @return 2<sup>D</sup> with D the number of selected dimensions, or 0 iff the hypercube is a leaf.
+     */
+    int countSplits(int[] lowerBounds, int[] higherBounds){
+        int mask = split_mask(lowerBounds, higherBounds);
+        return (mask == 0) ? 0 : (1 << Integer.bitCount(mask));
+    }
+
+    /**
+     * Calculates a single hypercube split without allocating the others.
+     * For {@link #MIDPOINT}, the split with index i is the i-th split of {@link GridGraph#split(int[], int[])}.
+     * @param lowerBounds Lower bounds of the hypercube to be split.
+     * @param higherBounds Higher bounds of the hypercube to be split.
+     * @param i Index of the split, between 0 and <code>countSplits(lowerBounds, higherBounds)-1</code>.
+     * @param lower Array to store the lower bounds of the split in.
+     * @param higher Array to store the higher bounds of the split in.
+     */
+    void split(int[] lowerBounds, int[] higherBounds, int i, int[] lower, int[] higher){
+        int mask = split_mask(lowerBounds, higherBounds);
+        for(int k = 0, j = 0; k < lowerBounds.length; k++){
+            if((mask & (1 << k)) != 0){
+                boolean low = (i & (1 << j++)) == 0;
+                int med = (lowerBounds[k] + higherBounds[k])/2;
+                lower[k] = low ? lowerBounds[k] : (med + 1);
+                higher[k] = low ? med : higherBounds[k];
+            } else {
+                lower[k] = lowerBounds[k];
+                higher[k] = higherBounds[k];
+            }
+        }
+    }
+}
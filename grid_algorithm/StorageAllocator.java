@@ -0,0 +1,36 @@
+package grid_algorithm;
+
+/**
+ * Allocates the {@link DoubleStorage} for flows and demands.
+ * @author Jonas Schulz
+ */
+interface StorageAllocator {
+    /**
+     * Allocates a storage with all entries set to 0.
+     * @param length Number of entries.
+     * @return The new storage.
+     */
+    DoubleStorage allocate(int length);
+
+    /**
+     * Takes back a storage that is no longer used.
+     * The allocator may reuse it for later allocations of the same length.
+     * @param storage A storage obtained from this allocator.
+     */
+    void release(DoubleStorage storage);
+
+    /**
+     * The default allocator, which allocates {@link HeapStorage} on the Java heap.
+     * Released storages are left to the garbage collector.
+     */
+    StorageAllocator HEAP = new StorageAllocator() {
+        @Override
+        public DoubleStorage allocate(int length) {
+            return new HeapStorage(new double[length]);
+        }
+
+        @Override
+        public void release(DoubleStorage storage) {
+        }
+    };
+}
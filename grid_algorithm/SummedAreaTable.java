@@ -0,0 +1,140 @@
+package grid_algorithm;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A summed-area table, i.e. the d-dimensional prefix sums of a vector over the vertices of a {@link GridGraph}.
+ * The entry of vertex x is the sum of all values at the vertices y with y<sub>k</sub> &le; x<sub>k</sub> for all dimensions k.
+ * <br>
+ * The table is built in d sweeps over the vertices, one running sum per dimension, see {@link #build(GridDemand)}.
+ * Afterwards, the sum over any hyper-box is answered from its 2<sup>d</sup> corners by inclusion-exclusion,
+ * see {@link #box_sum(int[], int[])}. This serves the excess flows of the {@link GridApproximatorTree} nodes
+ * as well as region queries on demands and excess flows, e.g. <code>new SummedAreaTable(g).build(f.calculateExcessFlows())</code>.
+ * <br>
+ * Note that a box sum is a signed sum of prefix sums, which may be much larger than the box sum itself;
+ * the result thus carries an absolute rounding error relative to the sum of the whole table rather than of the box.
+ * @author Jonas Schulz
+ */
+public class SummedAreaTable {
+    /**
+     * The grid graph on whose vertices the table is defined.
+     */
+    final GridGraph g;
+    /**
+     * The prefix sums, indexed as the vertices of {@link #g}.
+     */
+    final double[] prefix;
+    /**
+     * The pool on which the sweeps run in parallel, or <code>null</code> to run them on the calling thread.
+     */
+    ForkJoinPool pool = null;
+    /**
+     * Number of consecutive vertices per task of a sweep.
+     */
+    int chunk_size = 1 << 12;
+
+    /**
+     * Standard constructor. The table is empty (all zero) until {@link #build(GridDemand)} is called.
+     * @param g The grid graph on whose vertices the table is defined.
+     */
+    public SummedAreaTable(GridGraph g){
+        this.g = g;
+        this.prefix = new double[g.getN()];
+    }
+
+    /**
+     * Builds the prefix sums of the given vector, replacing the previous contents of this table.
+     * For each dimension k, each line along k is replaced by its running sum; the lines are processed
+     * row by row (contiguous in memory), and in parallel iff {@link #pool} is set.
+     * The results do not depend on the pool, as each entry is summed up in a fixed order.
+     * @param b The vector, e.g. a demand or the excess flows of a flow.
+     * @return This table.
+     */
+    public SummedAreaTable build(GridDemand b){
+        DoubleStorage entries = b.entries;
+        double[] a = entries.array();
+        if(a != null){
+            System.arraycopy(a, 0, prefix, 0, prefix.length);
+        } else {
+            for(int v = 0; v < prefix.length; v++){
+                prefix[v] = entries.get(v);
+            }
+        }
+        int n = prefix.length;
+        for(int k = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int nk = g.nodesPerDim[k];
+            if(nk == 1) continue;
+            int run = s * nk;
+            int blocks = n / run;
+            // each unit is a range of at most chunk_size offsets within one block
+            int per_block = (s + chunk_size - 1) / chunk_size;
+            int units = blocks * per_block;
+            Chunks.run(pool, 0, units, 1, (c, from, to) -> sweep(c, per_block, s, nk, run));
+        }
+        return this;
+    }
+
+    /**
+     * Processes one unit of the sweep along a dimension, see {@link #build(GridDemand)}.
+     * @param unit The unit, i.e. a block and a range of offsets within the block.
+     * @param per_block Number of units per block.
+     * @param s The stride of the dimension.
+     * @param nk The number of vertices along the dimension.
+     * @param run The size of a block, i.e. <code>s*nk</code>.
+     */
+    private void sweep(int unit, int per_block, int s, int nk, int run){
+        int base = (unit / per_block) * run;
+        int o0 = (unit % per_block) * chunk_size;
+        int o1 = Math.min(s, o0 + chunk_size);
+        for(int j = 1; j < nk; j++){
+            int row = base + j*s;
+            int prev = row - s;
+            for(int o = o0; o < o1; o++){
+                prefix[row + o] += prefix[prev + o];
+            }
+        }
+    }
+
+    /**
+     * Calculates the sum over the vertices of the hyper-box with the given corners in O(2<sup>d</sup>) time.
+     * @param lower Lower bounds of the box.
+     * @param higher Higher bounds of the box.
+     * @return The sum of the vector of the last {@link #build(GridDemand)} over the box.
+     */
+    public double box_sum(int[] lower, int[] higher){
+        return box_sum(lower, higher, 0);
+    }
+
+    /**
+     * Same as {@link #box_sum(int[], int[])}, but reads the bounds from <code>lower[offset]</code> and <code>higher[offset]</code> on,
+     * e.g. from the flat bounds {@link ExplicitTreeTopology#lower_bounds} and {@link ExplicitTreeTopology#higher_bounds}.
+     * @param lower Lower bounds of the box, starting at <code>offset</code>.
+     * @param higher Higher bounds of the box, starting at <code>offset</code>.
+     * @param offset Index of the bound of the first dimension.
+     * @return The sum of the vector of the last {@link #build(GridDemand)} over the box.
+     */
+    public double box_sum(int[] lower, int[] higher, int offset){
+        int d = g.strides.length;
+        double sum = 0;
+        // corner of mask: lower-1 in the dimensions of set bits, higher otherwise; sign by the number of set bits
+        corners:
+        for(int mask = 0; mask < (1 << d); mask++){
+            int index = 0;
+            boolean negative = false;
+            for(int k = 0; k < d; k++){
+                int c;
+                if(((mask >> k) & 1) != 0){
+                    c = lower[offset + k] - 1;
+                    if(c < 0) continue corners;
+                    negative = !negative;
+                } else {
+                    c = higher[offset + k];
+                }
+                index += c * g.strides[k];
+            }
+            sum += negative ? -prefix[index] : prefix[index];
+        }
+        return sum;
+    }
+}
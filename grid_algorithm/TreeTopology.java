@@ -0,0 +1,167 @@
+package grid_algorithm;
+
+/**
+ * The structure of the approximator tree of {@link GridApproximatorTree}, i.e. the hypercube splits of a {@link SplitPolicy},
+ * independent of any values stored per node.
+ * <br>
+ * The nodes are numbered in level order (breadth-first): the root has index 0, the nodes of level l are the nodes
+ * {@link #level_offset(int) level_offset(l)} to <code>level_offset(l+1)-1</code>, and the children of each node are numbered contiguously
+ * in the order of {@link SplitPolicy#split(int[], int[], int, int[], int[])}. Hence, each parent has a smaller index than its children.
+ * <br>
+ * {@link ExplicitTreeTopology} stores the structure in arrays and supports all grids,
+ * whereas {@link ImplicitTreeTopology} calculates it arithmetically and only needs memory per level instead of per node,
+ * but requires all sides of the grid to be powers of two. {@link MappedTreeTopology} reads the arrays of the explicit topology
+ * from a snapshot file mapped into memory. All of them number the nodes identically.
+ * @author Jonas Schulz
+ */
+interface TreeTopology {
+    /**
+     * Returns the policy the hypercubes are split by.
+     * @return The split policy.
+     */
+    SplitPolicy policy();
+
+    /**
+     * Returns the number of nodes, including the root.
+     * @return The number of nodes.
+     */
+    int size();
+
+    /**
+     * Returns the number of levels, i.e. the height of the tree plus one.
+     * @return The number of levels.
+     */
+    int levels();
+
+    /**
+     * Returns the first node of level l, or {@link #size()} for l = {@link #levels()}.
+     * @param l The level, with the root at level 0.
+     * @return The first node of level l.
+     */
+    int level_offset(int l);
+
+    /**
+     * Returns the first child of node i. For leaves, this equals {@link #child_end(int)}.
+     * @param i The node.
+     * @return The first child of node i.
+     */
+    int child_begin(int i);
+
+    /**
+     * Returns the node after the last child of node i.
+     * @param i The node.
+     * @return The node after the last child of node i.
+     */
+    int child_end(int i);
+
+    /**
+     * Returns the parent of node i.
+     * @param i The node.
+     * @return The parent of node i, or -1 for the root.
+     */
+    int parent(int i);
+
+    /**
+     * Returns the graph vertex represented by node i.
+     * @param i The node.
+     * @return The vertex iff node i is a leaf, otherwise -1.
+     */
+    int vertex(int i);
+
+    /**
+     * Returns the leaf representing the graph vertex v.
+     * @param v The vertex.
+     * @return The leaf of vertex v.
+     */
+    int leaf(int v);
+
+    /**
+     * Returns the capacity of the hypercube cut of node i, see {@link GridGraph#capHyperBox(int[], int[])}.
+     * @param i The node.
+     * @return The capacity. The capacity of the root is 0.
+     */
+    int capacity(int i);
+
+    /**
+     * Stores the bounds of the hypercube of node i in the given arrays.
+     * @param i The node.
+     * @param lower Array of length d to store the lower bounds in.
+     * @param higher Array of length d to store the higher bounds in.
+     */
+    void bounds(int i, int[] lower, int[] higher);
+
+    /**
+     * Same as {@link #child_begin(int)}, for a node whose level is known.
+     * Passes over the levels should use the accessors with the level, which spare {@link ImplicitTreeTopology} the search for the level of the node.
+     * @param i The node.
+     * @param l The level of node i.
+     * @return The first child of node i.
+     */
+    default int child_begin(int i, int l){
+        return child_begin(i);
+    }
+
+    /**
+     * Same as {@link #child_end(int)}, for a node whose level is known.
+     * @param i The node.
+     * @param l The level of node i.
+     * @return The node after the last child of node i.
+     */
+    default int child_end(int i, int l){
+        return child_end(i);
+    }
+
+    /**
+     * Same as {@link #parent(int)}, for a node whose level is known.
+     * @param i The node.
+     * @param l The level of node i.
+     * @return The parent of node i, or -1 for the root.
+     */
+    default int parent(int i, int l){
+        return parent(i);
+    }
+
+    /**
+     * Same as {@link #vertex(int)}, for a node whose level is known.
+     * @param i The node.
+     * @param l The level of node i.
+     * @return The vertex iff node i is a leaf, otherwise -1.
+     */
+    default int vertex(int i, int l){
+        return vertex(i);
+    }
+
+    /**
+     * Same as {@link #capacity(int)}, for a node whose level is known.
+     * @param i The node.
+     * @param l The level of node i.
+     * @return The capacity. The capacity of the root is 0.
+     */
+    default int capacity(int i, int l){
+        return capacity(i);
+    }
+
+    /**
+     * Same as {@link #bounds(int, int[], int[])}, for a node whose level is known.
+     * @param i The node.
+     * @param l The level of node i.
+     * @param lower Array of length d to store the lower bounds in.
+     * @param higher Array of length d to store the higher bounds in.
+     */
+    default void bounds(int i, int l, int[] lower, int[] higher){
+        bounds(i, lower, higher);
+    }
+
+    /**
+     * Returns the implicit topology iff the grid supports it, and the explicit topology otherwise.
+     * @param g The grid graph.
+     * @param policy The policy the hypercubes are split by.
+     * @param implicit Whether to prefer the implicit topology.
+     * @return The topology of the approximator tree of g.
+     */
+    static TreeTopology of(GridGraph g, SplitPolicy policy, boolean implicit){
+        if(implicit && ImplicitTreeTopology.supports(g))
+            return new ImplicitTreeTopology(g, policy);
+        return new ExplicitTreeTopology(g, policy);
+    }
+}
@@ -0,0 +1,72 @@
+package grid_algorithm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of {@link SoftmaxKernel} with the Vector API (<code>jdk.incubator.vector</code>).
+ * The exponentials are evaluated lane-wise with the preferred vector size of the platform
+ * (e.g. 4 doubles with AVX2, 8 doubles with AVX-512); the remaining values are handled by scalar code.
+ * Since the lanes are summed up separately, the sums may differ from the scalar kernel in the last bits.
+ * Use {@link SoftmaxKernel#INSTANCE} instead of referring to this class, which requires the module
+ * <code>jdk.incubator.vector</code> to be loaded.
+ * @author Jonas Schulz
+ */
+final class VectorSoftmaxKernel implements SoftmaxKernel {
+    /**
+     * The preferred vector species of the platform.
+     */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double sum_exp_sym(double[] x, int from, int to, double s, double shift) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = from;
+        for(int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()){
+            DoubleVector sx = DoubleVector.fromArray(SPECIES, x, i).mul(s);
+            DoubleVector exp1 = sx.add(shift).lanewise(VectorOperators.EXP);
+            DoubleVector exp2 = sx.neg().add(shift).lanewise(VectorOperators.EXP);
+            acc = acc.add(exp1.add(exp2));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for(; i < to; i++){
+            double sx = x[i] * s;
+            sum += Math.exp(sx + shift) + Math.exp((-sx) + shift);
+        }
+        return sum;
+    }
+
+    @Override
+    public double diff_exp_sym(double[] x, double[] out, int from, int to, double s, double shift) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int i = from;
+        for(int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()){
+            DoubleVector sx = DoubleVector.fromArray(SPECIES, x, i).mul(s);
+            DoubleVector exp1 = sx.add(shift).lanewise(VectorOperators.EXP);
+            DoubleVector exp2 = sx.neg().add(shift).lanewise(VectorOperators.EXP);
+            acc = acc.add(exp1.add(exp2));
+            exp1.sub(exp2).intoArray(out, i);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for(; i < to; i++){
+            double sx = x[i] * s;
+            double exp1 = Math.exp(sx + shift);
+            double exp2 = Math.exp((-sx) + shift);
+            sum += exp1 + exp2;
+            out[i] = exp1 - exp2;
+        }
+        return sum;
+    }
+
+    @Override
+    public void divide(double[] x, int length, double d) {
+        int i = 0;
+        for(int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()){
+            DoubleVector.fromArray(SPECIES, x, i).div(d).intoArray(x, i);
+        }
+        for(; i < length; i++){
+            x[i] /= d;
+        }
+    }
+}
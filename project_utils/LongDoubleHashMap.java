@@ -0,0 +1,247 @@
+package project_utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive <code>long</code> keys to primitive <code>double</code> values.
+ * In contrast to a {@link java.util.HashMap}, neither keys nor values are boxed; the
+ * entries are stored in two parallel arrays with open addressing and linear probing.
+ * The key {@link Long#MIN_VALUE} is reserved to mark empty slots and can not be used.
+ * @author Jonas Schulz
+ */
+public class LongDoubleHashMap {
+    /**
+     * Marker for empty slots in {@link #keys}.
+     */
+    static final long EMPTY = Long.MIN_VALUE;
+    /**
+     * The keys of the slots. Empty slots are marked with {@link #EMPTY}.
+     */
+    long[] keys;
+    /**
+     * The values of the slots. The value of an empty slot is undefined.
+     */
+    double[] values;
+    /**
+     * Number of occupied slots.
+     */
+    int size;
+    /**
+     * <code>keys.length - 1</code>. As the capacity is always a power of two, this is the bit mask for slot indices.
+     */
+    int mask;
+
+    /**
+     * Standard constructor.
+     * @param expectedSize Number of entries the map should hold without rehashing.
+     */
+    public LongDoubleHashMap(int expectedSize){
+        int capacity = 4;
+        while(capacity < 2*expectedSize) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Constructs an empty map with a small initial capacity.
+     */
+    public LongDoubleHashMap(){
+        this(8);
+    }
+
+    /**
+     * Allocates empty slot arrays of the given capacity.
+     * @param capacity Number of slots; has to be a power of two.
+     */
+    private void allocate(int capacity){
+        keys = new long[capacity];
+        values = new double[capacity];
+        Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * Calculates the home slot of a key.
+     * The key is mixed with the finalizer of MurmurHash3, s.t. keys that are close to each other
+     * (like the indices of neighbouring edges) are spread over the slots.
+     * @param key The key.
+     * @return The index of the first slot to probe for <code>key</code>.
+     */
+    int slot(long key){
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int)h & mask;
+    }
+
+    /**
+     * Finds the slot of a key.
+     * @param key The key.
+     * @return The slot containing <code>key</code>, or the empty slot where it would be inserted.
+     */
+    int find(long key){
+        if(key == EMPTY)
+            throw new IllegalArgumentException("Long.MIN_VALUE can not be used as a key.");
+        int i = slot(key);
+        while(keys[i] != EMPTY && keys[i] != key){
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the value stored for <code>key</code>.
+     * @param key The key.
+     * @param defaultValue Value to be returned if there is no entry for <code>key</code>.
+     * @return The value for <code>key</code>, or <code>defaultValue</code> iff there is none.
+     */
+    public double get(long key, double defaultValue){
+        int i = find(key);
+        return keys[i] == EMPTY ? defaultValue : values[i];
+    }
+
+    /**
+     * Returns the value stored for <code>key</code>, where missing entries count as 0.
+     * @param key The key.
+     * @return The value for <code>key</code>, or 0 iff there is none.
+     */
+    public double get(long key){
+        return get(key, 0.);
+    }
+
+    /**
+     * Checks whether there is an entry for <code>key</code>.
+     * @param key The key.
+     * @return <code>true</code> iff there is an entry for <code>key</code>.
+     */
+    public boolean containsKey(long key){
+        return keys[find(key)] != EMPTY;
+    }
+
+    /**
+     * Sets the value for <code>key</code>.
+     * @param key The key.
+     * @param value The new value.
+     */
+    public void put(long key, double value){
+        int i = find(key);
+        if(keys[i] == EMPTY){
+            keys[i] = key;
+            values[i] = value;
+            if(++size > (mask + 1) / 2) rehash((mask + 1) << 1);
+        } else {
+            values[i] = value;
+        }
+    }
+
+    /**
+     * Adds <code>value</code> to the value for <code>key</code>, where missing entries count as 0.
+     * @param key The key.
+     * @param value Value to be added.
+     */
+    public void add(long key, double value){
+        int i = find(key);
+        if(keys[i] == EMPTY){
+            keys[i] = key;
+            values[i] = value;
+            if(++size > (mask + 1) / 2) rehash((mask + 1) << 1);
+        } else {
+            values[i] += value;
+        }
+    }
+
+    /**
+     * Removes the entry for <code>key</code>, if there is one.
+     * Uses backward shift deletion, s.t. no tombstones are left behind.
+     * @param key The key.
+     * @return <code>true</code> iff there was an entry for <code>key</code>.
+     */
+    public boolean remove(long key){
+        int i = find(key);
+        if(keys[i] == EMPTY) return false;
+        // shift subsequent entries of the probe sequence back into the gap
+        int gap = i;
+        for(int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask){
+            int home = slot(keys[j]);
+            // the entry at j may fill the gap iff its home slot is not inside (gap, j]
+            if(((j - home) & mask) >= ((j - gap) & mask)){
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves all entries into new slot arrays of the given capacity.
+     * @param capacity New number of slots; has to be a power of two.
+     */
+    private void rehash(int capacity){
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        allocate(capacity);
+        for(int i = 0; i < oldKeys.length; i++){
+            if(oldKeys[i] != EMPTY){
+                int j = find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     * @return Number of entries.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Removes all entries, keeping the current capacity.
+     */
+    public void clear(){
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Functional interface for {@link #forEach(Consumer)}.
+     */
+    public interface Consumer {
+        /**
+         * Processes one entry.
+         * @param key Key of the entry.
+         * @param value Value of the entry.
+         */
+        void accept(long key, double value);
+    }
+
+    /**
+     * Calls <code>action</code> for each entry, in no particular order.
+     * The map must not be structurally modified by <code>action</code>.
+     * @param action Action to be performed for each entry.
+     */
+    public void forEach(Consumer action){
+        for(int i = 0; i < keys.length; i++){
+            if(keys[i] != EMPTY) action.accept(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * {@inheritDoc }
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("{");
+        forEach((k, v) -> s.append(s.length() > 1 ? ", " : "").append(k).append("=").append(v));
+        return s.append("}").toString();
+    }
+}
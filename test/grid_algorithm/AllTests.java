@@ -0,0 +1,29 @@
+package grid_algorithm;
+
+import java.io.IOException;
+import project_utils.Assertions;
+import project_utils.LongDoubleHashMapTest;
+
+/**
+ * Runs all test classes and ends with a non-zero status iff any check failed.
+ * The tests are plain programs next to the sources, in the packages of the classes they check.
+ * They need the same flags as the sources, e.g. from the root of the project:
+ * <pre>
+ * javac --release 21 --enable-preview --add-modules jdk.incubator.vector -cp &lt;libraries&gt; -d out grid_algorithm/*.java project_utils/*.java test/grid_algorithm/*.java test/project_utils/*.java
+ * java --enable-preview --add-modules jdk.incubator.vector -ea -cp out:&lt;libraries&gt; grid_algorithm.AllTests
+ * </pre>
+ * Each test class can also be run on its own.
+ * @author Jonas Schulz
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws IOException {
+        LongDoubleHashMapTest.run();
+        TreeTopologyTest.run();
+        ExcessFlowsTest.run();
+        IncidenceKernelTest.run();
+        DirectionalPotentialTest.run();
+        OffHeapStorageTest.run();
+        Assertions.exit();
+    }
+}
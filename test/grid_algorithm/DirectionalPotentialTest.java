@@ -0,0 +1,79 @@
+package grid_algorithm;
+
+import java.util.Arrays;
+import java.util.Random;
+import project_utils.Assertions;
+import project_utils.Triple;
+
+/**
+ * Checks that the potential along the direction of {@link DirectionalPotential} agrees with the full evaluation
+ * <i>&phi;(f + h &#8729; sgn(&nabla;&phi;))</i> of {@link ProbeEvaluator}, and that its derivatives agree with finite differences.
+ * @author Jonas Schulz
+ */
+public class DirectionalPotentialTest {
+
+    /**
+     * Runs all checks of this class.
+     */
+    public static void run(){
+        for(int[] dims : new int[][]{{8, 8}, {13, 7}, {5, 3, 4}, {16, 16}}){
+            for(boolean implicit : new boolean[]{false, true}){
+                GridGraph g = new GridGraph(dims);
+                if(implicit && !ImplicitTreeTopology.supports(g)) continue;
+                compare(g, implicit, (implicit ? "implicit " : "explicit ") + Arrays.toString(dims));
+            }
+        }
+    }
+
+    /**
+     * Compares the directional and the full potential at several step sizes, for a random flow, demand and gradient.
+     * Every fifth gradient entry is 0, s.t. the direction leaves some edges unchanged.
+     * @param g The grid graph.
+     * @param implicit Whether to use the implicit topology.
+     * @param name Description of the grid.
+     */
+    static void compare(GridGraph g, boolean implicit, String name){
+        Random r = new Random(21);
+        GridApproximation ga = new GridApproximation(g, new GridApproximatorTree(g, implicit));
+        GridFlow flow = new GridFlow(g), gradient = new GridFlow(g);
+        for(int e = 0; e < g.getM(); e++){
+            flow.entries.set(e, r.nextGaussian());
+            gradient.entries.set(e, e % 5 == 0 ? 0. : r.nextGaussian());
+        }
+        GridDemand demand = ExcessFlowsTest.random_demand(g, r);
+        ProbeEvaluator probes = new ProbeEvaluator(ga, StorageAllocator.HEAP);
+        DirectionalPotential directional = new DirectionalPotential(ga, StorageAllocator.HEAP);
+        directional.prepare(flow, gradient, demand);
+        double[] buffer = directional.worker_buffers(1)[0];
+        ProbeEvaluator worker = probes.workers(1)[0];
+        double error = 0., buffer_error = 0., worker_error = 0., value_error = 0., d1_error = 0., d2_error = 0.;
+        for(double h : new double[]{0., 1e-3, -1e-3, 0.05, 0.5, -0.5, 2.}){
+            double full = probes.potential(flow, h, gradient, demand);
+            double tolerance = 1e-12 * Math.max(1., Math.abs(full));
+            error = Math.max(error, Math.abs(directional.potential(h) - full) / tolerance);
+            buffer_error = Math.max(buffer_error, Math.abs(directional.potential(h, buffer) - full) / tolerance);
+            worker_error = Math.max(worker_error, Math.abs(worker.potential(flow, h, gradient, demand, ga.incidence()) - full));
+            Triple<Double, Double, Double> derivatives = directional.potential_derivatives(h);
+            value_error = Math.max(value_error, Math.abs(derivatives.a - full) / tolerance);
+            // central differences of the full evaluation
+            double step = 1e-4;
+            double up = probes.potential(flow, h + step, gradient, demand), down = probes.potential(flow, h - step, gradient, demand);
+            double d1 = (up - down) / (2*step), d2 = (up - 2*full + down) / (step*step);
+            d1_error = Math.max(d1_error, Math.abs(derivatives.b - d1) / Math.max(1., Math.abs(d1)));
+            d2_error = Math.max(d2_error, Math.abs(derivatives.c - d2) / Math.max(1., Math.abs(d2)));
+        }
+        Assertions.close(0., error, 1e3, name + ": directional potential in units of 1e-12");
+        Assertions.close(0., buffer_error, 1e3, name + ": directional potential with a worker buffer in units of 1e-12");
+        Assertions.close(0., worker_error, 0., name + ": full potential of a worker evaluator");
+        Assertions.close(0., value_error, 1e3, name + ": potential of the derivatives in units of 1e-12");
+        Assertions.close(0., d1_error, 1e-5, name + ": first derivative");
+        Assertions.close(0., d2_error, 1e-2, name + ": second derivative");
+        probes.release();
+        directional.release();
+    }
+
+    public static void main(String[] args){
+        run();
+        Assertions.exit();
+    }
+}
@@ -0,0 +1,157 @@
+package grid_algorithm;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import project_utils.Assertions;
+
+/**
+ * Checks that the delta updates, the summed-area table and the non-modifying potential of {@link GridApproximatorTree}
+ * agree with a full recomputation of the excess flows by {@link GridApproximatorTree#updateExcessFlows(GridDemand)},
+ * and that the parallel tree passes yield the same results as the serial ones.
+ * @author Jonas Schulz
+ */
+public class ExcessFlowsTest {
+
+    /**
+     * Runs all checks of this class.
+     */
+    public static void run(){
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for(int[] dims : new int[][]{{16, 16}, {13, 7}, {4, 8, 2}, {5, 6, 3}, {64}}){
+                for(boolean implicit : new boolean[]{false, true}){
+                    GridGraph g = new GridGraph(dims);
+                    if(implicit && !ImplicitTreeTopology.supports(g)) continue;
+                    String name = (implicit ? "implicit " : "explicit ") + Arrays.toString(dims);
+                    delta_updates(g, implicit, name);
+                    summed_area_table(g, implicit, name);
+                    lmax_without_update(g, implicit, name);
+                    parallel_passes(g, implicit, pool, name);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns a demand with standard normal entries.
+     * @param g The grid graph.
+     * @param r The source of randomness.
+     * @return The demand.
+     */
+    static GridDemand random_demand(GridGraph g, Random r){
+        GridDemand b = new GridDemand(g);
+        for(int v = 0; v < g.getN(); v++){
+            b.set(v, r.nextGaussian());
+        }
+        return b;
+    }
+
+    /**
+     * Changes a few vertices per round by delta updates, over more rounds than {@link GridApproximatorTree#resync_interval},
+     * and compares the excess flows, the congestions and their maximum with a full update after each round.
+     * @param g The grid graph.
+     * @param implicit Whether to use the implicit topology.
+     * @param name Description of the grid.
+     */
+    static void delta_updates(GridGraph g, boolean implicit, String name){
+        Random r = new Random(11);
+        GridApproximatorTree t = new GridApproximatorTree(g, implicit);
+        GridApproximatorTree reference = new GridApproximatorTree(g, implicit);
+        GridDemand b = random_demand(g, r);
+        t.updateExcessFlows(b);
+        int[] vertices = new int[4];
+        double[] values = new double[4];
+        double error = 0., linf_error = 0.;
+        for(int round = 0; round < 3*t.resync_interval; round++){
+            int count = 1 + r.nextInt(vertices.length);
+            for(int j = 0; j < count; j++){
+                vertices[j] = r.nextInt(g.getN());
+                values[j] = r.nextGaussian();
+                b.set(vertices[j], values[j]);
+            }
+            t.updateExcessFlows(vertices, values, count);
+            reference.updateExcessFlows(b);
+            for(int i = 0; i < t.size; i++){
+                error = Math.max(error, Math.abs(t.excess[i] - reference.excess[i]));
+                if(i > 0) error = Math.max(error, Math.abs(t.congestion[i] - reference.congestion[i]));
+            }
+            linf_error = Math.max(linf_error, Math.abs(t.linf_congestion() - reference.linf_congestion()));
+        }
+        Assertions.close(0., error, 1e-10, name + ": delta updates");
+        Assertions.close(0., linf_error, 1e-10, name + ": maximum congestion after delta updates");
+        t.resync();
+        reference.updateExcessFlows(b);
+        Assertions.close(reference.excess, t.excess, 1e-12, name + ": excess flows after resync");
+    }
+
+    /**
+     * Compares the excess flows from the box sums of a {@link SummedAreaTable} with those of a full update.
+     * The box sums carry rounding errors relative to the sum of the whole table, which bounds the tolerance.
+     * @param g The grid graph.
+     * @param implicit Whether to use the implicit topology.
+     * @param name Description of the grid.
+     */
+    static void summed_area_table(GridGraph g, boolean implicit, String name){
+        GridDemand b = random_demand(g, new Random(12));
+        GridApproximatorTree t = new GridApproximatorTree(g, implicit);
+        GridApproximatorTree reference = new GridApproximatorTree(g, implicit);
+        reference.updateExcessFlows(b);
+        t.updateExcessFlows(new SummedAreaTable(g).build(b));
+        double tolerance = 1e-12 * b.l1();
+        Assertions.close(reference.excess, t.excess, tolerance, name + ": excess flows of the summed-area table");
+        Assertions.close(reference.linf_congestion(), t.linf_congestion(), tolerance, name + ": maximum congestion of the summed-area table");
+    }
+
+    /**
+     * Compares {@link GridApproximatorTree#lmax_shifted_2alpha_congestion(GridDemand, double[])}, which works in a scratch buffer,
+     * with a full update followed by {@link GridApproximatorTree#lmax_shifted_2alpha_congestion()}, and checks that it leaves the tree unchanged.
+     * @param g The grid graph.
+     * @param implicit Whether to use the implicit topology.
+     * @param name Description of the grid.
+     */
+    static void lmax_without_update(GridGraph g, boolean implicit, String name){
+        Random r = new Random(13);
+        GridApproximatorTree t = new GridApproximatorTree(g, implicit);
+        double[] scratch = new double[t.size];
+        GridDemand kept = random_demand(g, r);
+        t.updateExcessFlows(kept);
+        double[] excess = t.excess.clone();
+        for(int round = 0; round < 3; round++){
+            GridDemand b = random_demand(g, r).scale_inplace(round + 1);
+            double lmax = t.lmax_shifted_2alpha_congestion(b, scratch);
+            Assertions.close(excess, t.excess, 0., name + ": tree unchanged by the scratch potential");
+            t.updateExcessFlows(b);
+            Assertions.close(t.lmax_shifted_2alpha_congestion(), lmax, 0., name + ": scratch potential");
+            t.updateExcessFlows(kept);
+        }
+    }
+
+    /**
+     * Compares the tree passes on a pool, with chunks small enough to be split, with the serial passes.
+     * @param g The grid graph.
+     * @param implicit Whether to use the implicit topology.
+     * @param pool The pool.
+     * @param name Description of the grid.
+     */
+    static void parallel_passes(GridGraph g, boolean implicit, ForkJoinPool pool, String name){
+        GridDemand b = random_demand(g, new Random(14));
+        GridApproximatorTree serial = new GridApproximatorTree(g, implicit);
+        GridApproximatorTree parallel = new GridApproximatorTree(g, implicit);
+        serial.chunk_size = 8;
+        parallel.chunk_size = 8;
+        parallel.pool = pool;
+        serial.updateExcessFlows(b);
+        parallel.updateExcessFlows(b);
+        Assertions.close(serial.excess, parallel.excess, 0., name + ": parallel excess flows");
+        Assertions.close(serial.congestion, parallel.congestion, 0., name + ": parallel congestions");
+        Assertions.close(serial.lmax_shifted_2alpha_congestion(), parallel.lmax_shifted_2alpha_congestion(), 0., name + ": parallel potential");
+    }
+
+    public static void main(String[] args){
+        run();
+        Assertions.exit();
+    }
+}
@@ -0,0 +1,101 @@
+package grid_algorithm;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import project_utils.Assertions;
+
+/**
+ * Checks the incidence kernels <i>B &#8729; f</i> and <i>B<sup>T</sup> &#8729; p</i> against the plain loops over the edges,
+ * for several block sizes, serial and on a pool, on the Java heap and off-heap.
+ * @author Jonas Schulz
+ */
+public class IncidenceKernelTest {
+
+    /**
+     * Runs all checks of this class.
+     */
+    public static void run(){
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for(int[] dims : new int[][]{{13, 7, 5}, {16, 16}, {3, 4, 5, 6}, {1, 9}, {1}, {100, 3}, {7, 1, 5}, {2, 2, 2, 2, 2}}){
+                GridGraph g = new GridGraph(dims);
+                Random r = new Random(9);
+                GridFlow f = new GridFlow(g);
+                for(int e = 0; e < g.getM(); e++) f.entries.set(e, r.nextGaussian());
+                GridDemand p = new GridDemand(g);
+                for(int v = 0; v < g.getN(); v++) p.entries.set(v, r.nextGaussian());
+                double[] excess = excess_flows(f, g), differences = potential_differences(p, g);
+                Assertions.close(excess, f.calculateExcessFlows().entries.toArray(), 0., Arrays.toString(dims) + ": shared B f");
+                Assertions.close(differences, p.toPotentialDiffEdgesFlow().entries.toArray(), 0., Arrays.toString(dims) + ": shared B^T p");
+                for(int chunk_size : new int[]{1 << 14, 1, 3, 7}){
+                    for(boolean parallel : new boolean[]{false, true}){
+                        IncidenceKernel kernel = new IncidenceKernel(g, parallel ? pool : null, false);
+                        kernel.chunk_size = chunk_size;
+                        kernel.potential_chunk_size = chunk_size;
+                        String name = Arrays.toString(dims) + " chunk " + chunk_size + (parallel ? " parallel" : " serial");
+                        Assertions.close(excess, f.calculateExcessFlows(new GridDemand(g), kernel).entries.toArray(), 0., name + ": B f");
+                        Assertions.close(differences, p.toPotentialDiffEdgesFlow(kernel).entries.toArray(), 0., name + ": B^T p");
+                        try(OffHeapArena arena = new OffHeapArena()){
+                            GridFlow f_off = f.copy(arena);
+                            GridDemand p_off = p.copy(arena);
+                            Assertions.close(excess, f_off.calculateExcessFlows(new GridDemand(g, arena), kernel).entries.toArray(), 0., name + ": off-heap B f");
+                            Assertions.close(differences, p_off.toPotentialDiffEdgesFlow(kernel).entries.toArray(), 0., name + ": off-heap B^T p");
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Calculates <i>B &#8729; f</i> edge by edge, in the enumeration scheme of {@link GridGraph#toEdgeKey(int, int)}.
+     * @param f The flow.
+     * @param g The grid graph.
+     * @return The excess flows.
+     */
+    static double[] excess_flows(GridFlow f, GridGraph g){
+        int n = g.getN();
+        double[] excess = new double[n];
+        for(int k = 0, e = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int run = s*(g.nodesPerDim[k] - 1);
+            for(int base = 0; base < n; base += run + s){
+                for(int v = base; v < base + run; v++, e++){
+                    double value = f.entries.get(e);
+                    excess[v] -= value;
+                    excess[v + s] += value;
+                }
+            }
+        }
+        return excess;
+    }
+
+    /**
+     * Calculates <i>B<sup>T</sup> &#8729; p</i> edge by edge, in the enumeration scheme of {@link GridGraph#toEdgeKey(int, int)}.
+     * @param p The potentials.
+     * @param g The grid graph.
+     * @return The potential differences along the edges.
+     */
+    static double[] potential_differences(GridDemand p, GridGraph g){
+        int n = g.getN();
+        double[] differences = new double[g.getM()];
+        for(int k = 0, e = 0; k < g.nodesPerDim.length; k++){
+            int s = g.strides[k];
+            int run = s*(g.nodesPerDim[k] - 1);
+            for(int base = 0; base < n; base += run + s){
+                for(int v = base; v < base + run; v++, e++){
+                    differences[e] = p.entries.get(v + s) - p.entries.get(v);
+                }
+            }
+        }
+        return differences;
+    }
+
+    public static void main(String[] args){
+        run();
+        Assertions.exit();
+    }
+}
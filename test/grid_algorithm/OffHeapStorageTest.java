@@ -0,0 +1,125 @@
+package grid_algorithm;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import project_utils.Assertions;
+import project_utils.DoubleSequence;
+import project_utils.Tuple;
+
+/**
+ * Checks that the off-heap storage of {@link OffHeapArena} behaves like the heap storage,
+ * from the single vectors up to whole solves of {@link GridApproximation} with and without {@link GridApproximation#off_heap}.
+ * The sums of exponentials of heap vectors are vectorized by {@link SoftmaxKernel#INSTANCE}, whereas off-heap vectors are summed up entry by entry,
+ * so these results agree up to rounding; all other results are the same.
+ * @author Jonas Schulz
+ */
+public class OffHeapStorageTest {
+
+    /**
+     * Runs all checks of this class.
+     */
+    public static void run(){
+        vectors();
+        release();
+        for(int mode = 0; mode < 3; mode++){
+            solves(mode);
+        }
+    }
+
+    /**
+     * Compares the vector operations of flows and demands on both storages.
+     */
+    static void vectors(){
+        GridGraph g = new GridGraph(9, 5, 3);
+        Random r = new Random(31);
+        GridFlow f = new GridFlow(g);
+        for(int e = 0; e < g.getM(); e++) f.entries.set(e, r.nextGaussian());
+        GridDemand b = ExcessFlowsTest.random_demand(g, r);
+        try(OffHeapArena arena = new OffHeapArena()){
+            GridFlow f_off = f.copy(arena);
+            GridDemand b_off = b.copy(arena);
+            Assertions.check(f_off.entries.array() == null, "off-heap flows have no backing array");
+            Assertions.close(f.entries.toArray(), f_off.entries.toArray(), 0., "copied flow");
+            Assertions.close(b.entries.toArray(), b_off.entries.toArray(), 0., "copied demand");
+            double[] out = new double[g.getM()];
+            f_off.entries.copyTo(out);
+            Assertions.close(f.entries.toArray(), out, 0., "flow copied back to the heap");
+            Assertions.close(f.lmax_shifted(), f_off.lmax_shifted(), 1e-12 * f.lmax_shifted(), "lmax of the flow");
+            Assertions.close(f.l1(), f_off.l1(), 0., "l1 of the flow");
+            Assertions.close(b.linf(), b_off.linf(), 0., "linf of the demand");
+            Assertions.close(GridDemand.subtract(b, f.calculateExcessFlows()).entries.toArray(),
+                    GridDemand.subtract(b_off, f_off.calculateExcessFlows()).entries.toArray(), 0., "residual demand");
+            Assertions.close(b.scale(0.5).entries.toArray(), b_off.scale(0.5).entries.toArray(), 0., "scaled demand");
+            Assertions.check(b_off.scale(0.5).entries.array() == null, "derived demands stay off-heap");
+        }
+    }
+
+    /**
+     * Checks that a released vector is reused by its arena and can not be released twice.
+     */
+    static void release(){
+        try(OffHeapArena arena = new OffHeapArena()){
+            DoubleStorage s = arena.allocate(10);
+            s.set(3, 2.5);
+            HeapStorage h = new HeapStorage(new double[10]);
+            h.copyFrom(s);
+            Assertions.close(2.5, h.get(3), 0., "heap copy of off-heap storage");
+            s.release();
+            Assertions.fails(IllegalStateException.class, s::release, "double release");
+            DoubleStorage t = arena.allocate(10);
+            Assertions.check(t == s, "released storage is reused");
+            Assertions.close(0., t.get(3), 0., "reused storage is cleared");
+            t.release();
+        }
+    }
+
+    /**
+     * Runs the same solves on the Java heap and off-heap and compares the resulting flows.
+     * @param mode 0 for fixed step sizes, 1 for the golden section search and 2 for the Newton line search.
+     */
+    static void solves(int mode){
+        for(int[] dims : new int[][]{{8, 8}, {5, 3, 4}, {13, 7}}){
+            GridGraph g = new GridGraph(dims);
+            GridDemand b = new GridDemand(g);
+            b.set(0, 1.);
+            b.set(g.getN() - 1, -.6);
+            b.set(g.getN() / 2, -.4);
+            GridFlow heap = solve(g, b, mode, false), off_heap = solve(g, b, mode, true);
+            Assertions.check(off_heap.entries.array() != null, "the result of an off-heap solve is on the heap");
+            Assertions.close(heap.entries.toArray(), off_heap.entries.toArray(), 1e-12, Arrays.toString(dims) + " mode " + mode + ": flow of the off-heap solve");
+        }
+    }
+
+    /**
+     * Runs {@link GridApproximation#AlmostRoute_inputs(GridDemand, double, double, DoubleSequence)} with its output suppressed.
+     * @param g The grid graph.
+     * @param b The demand.
+     * @param mode See {@link #solves(int)}.
+     * @param off_heap Whether to solve off-heap.
+     * @return The flow.
+     */
+    static GridFlow solve(GridGraph g, GridDemand b, int mode, boolean off_heap){
+        GridApproximation ga = new GridApproximation(g);
+        ga.printTikz = false;
+        ga.iterationLimit = 2000;
+        ga.dynamic_opt_stepsize = mode != 0;
+        ga.golden_section_search = mode == 1;
+        ga.newton_line_search = mode == 2;
+        ga.off_heap = off_heap;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Tuple<GridFlow, GridFlow> result = ga.AlmostRoute_inputs(b, 0.1, 3., DoubleSequence.one);
+            return result.a;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    public static void main(String[] args){
+        run();
+        Assertions.exit();
+    }
+}
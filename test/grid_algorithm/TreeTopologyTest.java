@@ -0,0 +1,115 @@
+package grid_algorithm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import project_utils.Assertions;
+
+/**
+ * Checks that the explicit, implicit and mapped topologies describe the same tree,
+ * and that truncated snapshots are rejected.
+ * @author Jonas Schulz
+ */
+public class TreeTopologyTest {
+
+    /**
+     * Runs all checks of this class.
+     * @throws IOException iff the snapshots can not be written.
+     */
+    public static void run() throws IOException {
+        Path dir = Files.createTempDirectory("snapshots");
+        try {
+            for(int[] dims : new int[][]{{8, 8}, {16, 4}, {4, 8, 2}, {2, 2, 2, 2}, {32}, {1, 8}, {1}}){
+                for(SplitPolicy policy : SplitPolicy.values()){
+                    GridGraph g = new GridGraph(dims);
+                    TreeTopology explicit = new ExplicitTreeTopology(g, policy);
+                    check_same(g, explicit, new ImplicitTreeTopology(g, policy), "implicit " + policy + " " + Arrays.toString(dims));
+                    check_same(g, explicit, MappedTreeTopology.snapshot(g, policy, dir), "mapped " + policy + " " + Arrays.toString(dims));
+                }
+            }
+            for(int[] dims : new int[][]{{13, 7}, {5, 6, 3}, {1, 9}, {100, 3}}){
+                for(SplitPolicy policy : SplitPolicy.values()){
+                    GridGraph g = new GridGraph(dims);
+                    Assertions.check(!ImplicitTreeTopology.supports(g), "no implicit topology for " + Arrays.toString(dims));
+                    check_same(g, new ExplicitTreeTopology(g, policy), MappedTreeTopology.snapshot(g, policy, dir), "mapped " + policy + " " + Arrays.toString(dims));
+                }
+            }
+            truncated_snapshots(dir);
+        } finally {
+            try(var files = Files.list(dir)){
+                for(Path file : (Iterable<Path>)files::iterator) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Compares two topologies of the same grid node by node and vertex by vertex, including the level-aware overloads.
+     * @param g The grid graph.
+     * @param expected The reference topology.
+     * @param actual The topology under test.
+     * @param message Description of the check.
+     */
+    static void check_same(GridGraph g, TreeTopology expected, TreeTopology actual, String message){
+        Assertions.check(expected.policy() == actual.policy(), message + ": policy");
+        Assertions.check(expected.size() == actual.size() && expected.levels() == actual.levels(), message + ": size and levels");
+        if(expected.size() != actual.size() || expected.levels() != actual.levels()) return;
+        int d = g.getDim();
+        int[] lower = new int[d], higher = new int[d], lower_actual = new int[d], higher_actual = new int[d];
+        boolean same = true;
+        for(int l = 0; l <= expected.levels(); l++){
+            same &= expected.level_offset(l) == actual.level_offset(l);
+        }
+        for(int l = 0; l < expected.levels(); l++){
+            for(int i = expected.level_offset(l); i < expected.level_offset(l+1); i++){
+                same &= expected.child_begin(i) == actual.child_begin(i) && expected.child_begin(i) == actual.child_begin(i, l);
+                same &= expected.child_end(i) == actual.child_end(i) && expected.child_end(i) == actual.child_end(i, l);
+                same &= expected.parent(i) == actual.parent(i) && expected.parent(i) == actual.parent(i, l);
+                same &= expected.vertex(i) == actual.vertex(i) && expected.vertex(i) == actual.vertex(i, l);
+                same &= expected.capacity(i) == actual.capacity(i) && expected.capacity(i) == actual.capacity(i, l);
+                expected.bounds(i, lower, higher);
+                actual.bounds(i, lower_actual, higher_actual);
+                same &= Arrays.equals(lower, lower_actual) && Arrays.equals(higher, higher_actual);
+                actual.bounds(i, l, lower_actual, higher_actual);
+                same &= Arrays.equals(lower, lower_actual) && Arrays.equals(higher, higher_actual);
+            }
+        }
+        for(int v = 0; v < g.getN(); v++){
+            same &= expected.leaf(v) == actual.leaf(v);
+        }
+        Assertions.check(same, message + ": nodes");
+    }
+
+    /**
+     * Checks that every proper prefix of a snapshot is rejected with an {@link IOException}
+     * instead of being read past its end, while the complete snapshot is accepted.
+     * @param dir Directory for the snapshots.
+     * @throws IOException iff the snapshots can not be written.
+     */
+    static void truncated_snapshots(Path dir) throws IOException {
+        GridGraph g = new GridGraph(5, 6, 3);
+        Path file = dir.resolve("complete.bin");
+        MappedTreeTopology.write(new ExplicitTreeTopology(g, SplitPolicy.MIDPOINT), g, file);
+        byte[] bytes = Files.readAllBytes(file);
+        Path truncated = dir.resolve("truncated.bin");
+        boolean rejected = true;
+        for(int length = 0; length < bytes.length; length++){
+            Files.write(truncated, Arrays.copyOf(bytes, length));
+            try {
+                new MappedTreeTopology(g, truncated);
+                rejected = false;
+            } catch(IOException e){
+                // expected
+            }
+        }
+        Assertions.check(rejected, "all truncated snapshots are rejected");
+        check_same(g, new ExplicitTreeTopology(g, SplitPolicy.MIDPOINT), new MappedTreeTopology(g, file), "complete snapshot");
+        Assertions.fails(IllegalArgumentException.class, () -> new MappedTreeTopology(new GridGraph(5, 6, 4), file), "snapshot of another grid");
+    }
+
+    public static void main(String[] args) throws IOException {
+        run();
+        Assertions.exit();
+    }
+}
@@ -0,0 +1,101 @@
+package project_utils;
+
+/**
+ * Minimal assertions for the test classes, which run as plain programs without a test framework.
+ * Failed checks are counted and reported instead of aborting, s.t. one run shows all failures;
+ * {@link #exit()} ends the run with a non-zero status iff any check failed.
+ * @author Jonas Schulz
+ */
+public final class Assertions {
+    /**
+     * Number of checks so far.
+     */
+    static int checks = 0;
+    /**
+     * Number of failed checks so far.
+     */
+    static int failures = 0;
+
+    private Assertions(){}
+
+    /**
+     * Checks a condition.
+     * @param condition The condition that should hold.
+     * @param message Description of the check, printed iff it fails.
+     */
+    public static void check(boolean condition, String message){
+        checks++;
+        if(!condition){
+            failures++;
+            System.out.println("FAILED: " + message);
+        }
+    }
+
+    /**
+     * Checks that two values are equal up to the given absolute tolerance.
+     * Two NaNs count as equal.
+     * @param expected The expected value.
+     * @param actual The actual value.
+     * @param tolerance The absolute tolerance; 0 for exact equality.
+     * @param message Description of the check, printed iff it fails.
+     */
+    public static void close(double expected, double actual, double tolerance, String message){
+        boolean ok = java.lang.Math.abs(expected - actual) <= tolerance || Double.compare(expected, actual) == 0;
+        check(ok, message + ": expected " + expected + ", but got " + actual);
+    }
+
+    /**
+     * Checks that two vectors are equal entry by entry up to the given absolute tolerance.
+     * @param expected The expected values.
+     * @param actual The actual values.
+     * @param tolerance The absolute tolerance; 0 for exact equality.
+     * @param message Description of the check, printed iff it fails.
+     */
+    public static void close(double[] expected, double[] actual, double tolerance, String message){
+        if(expected.length != actual.length){
+            check(false, message + ": expected " + expected.length + " entries, but got " + actual.length);
+            return;
+        }
+        for(int i = 0; i < expected.length; i++){
+            if(!(java.lang.Math.abs(expected[i] - actual[i]) <= tolerance || Double.compare(expected[i], actual[i]) == 0)){
+                check(false, message + ": entry " + i + " expected " + expected[i] + ", but got " + actual[i]);
+                return;
+            }
+        }
+        check(true, message);
+    }
+
+    /**
+     * Checks that an action throws an exception of the given type.
+     * @param type The expected type of the exception.
+     * @param action The action.
+     * @param message Description of the check, printed iff it fails.
+     */
+    public static void fails(Class<? extends Throwable> type, Action action, String message){
+        try {
+            action.run();
+            check(false, message + ": no " + type.getSimpleName() + " thrown");
+        } catch(Throwable t){
+            check(type.isInstance(t), message + ": expected " + type.getSimpleName() + ", but got " + t);
+        }
+    }
+
+    /**
+     * Action for {@link #fails(Class, Action)}, which may throw checked exceptions.
+     */
+    public interface Action {
+        /**
+         * Runs the action.
+         * @throws Exception any exception.
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Prints the number of checks and failures and ends the run, with status 1 iff any check failed.
+     */
+    public static void exit(){
+        System.out.println(checks + " checks, " + failures + " failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
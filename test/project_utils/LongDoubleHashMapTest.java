@@ -0,0 +1,112 @@
+package project_utils;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks {@link LongDoubleHashMap} against a {@link HashMap} under random operations,
+ * including removals within long probe sequences and rehashes.
+ * @author Jonas Schulz
+ */
+public class LongDoubleHashMapTest {
+
+    /**
+     * Runs all checks of this class.
+     */
+    public static void run(){
+        for(int range : new int[]{16, 1000, 1 << 20}){
+            random_operations(range, 7 + range);
+        }
+        clustered_removals();
+        reserved_key();
+    }
+
+    /**
+     * Applies the same random operations to both maps and compares them after each operation and at the end.
+     * Small key ranges force many collisions and removals of present keys.
+     * @param range Keys are drawn from <code>-range/2</code> to <code>range/2</code>.
+     * @param seed Seed of the random operations.
+     */
+    static void random_operations(int range, long seed){
+        Random r = new Random(seed);
+        LongDoubleHashMap map = new LongDoubleHashMap();
+        HashMap<Long, Double> reference = new HashMap<>();
+        boolean same = true;
+        for(int step = 0; step < 20000 && same; step++){
+            long key = r.nextInt(range) - range/2;
+            double value = r.nextGaussian();
+            switch(r.nextInt(5)){
+                case 0 -> { map.put(key, value); reference.put(key, value); }
+                case 1 -> { map.add(key, value); reference.merge(key, value, Double::sum); }
+                case 2 -> same = map.remove(key) == (reference.remove(key) != null);
+                case 3 -> same = map.containsKey(key) == reference.containsKey(key);
+                default -> same = Double.compare(map.get(key), reference.getOrDefault(key, 0.)) == 0;
+            }
+            same &= map.size() == reference.size();
+        }
+        check_same(map, reference, same, "random operations on " + range + " keys");
+        map.clear();
+        reference.clear();
+        check_same(map, reference, true, "cleared map of " + range + " keys");
+    }
+
+    /**
+     * Removes keys out of the middle of a cluster whose keys all share one home slot, which exercises the backward shift deletion.
+     */
+    static void clustered_removals(){
+        LongDoubleHashMap map = new LongDoubleHashMap(64);
+        HashMap<Long, Double> reference = new HashMap<>();
+        int home = map.slot(0);
+        int count = 0;
+        for(long key = 0; count < 20; key++){
+            // colliding keys, interleaved with keys of other home slots; at most 40 entries, s.t. the map is not rehashed
+            if(map.slot(key) == home || (key % 7 == 0 && key < 140)){
+                map.put(key, key);
+                reference.put(key, (double)key);
+                if(map.slot(key) == home) count++;
+            }
+        }
+        long[] keys = reference.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        for(int i = 1; i < keys.length; i += 3){
+            map.remove(keys[i]);
+            reference.remove(keys[i]);
+        }
+        check_same(map, reference, true, "removals within a cluster");
+    }
+
+    /**
+     * Checks that {@link Long#MIN_VALUE}, the marker of empty slots, is rejected as a key.
+     */
+    static void reserved_key(){
+        LongDoubleHashMap map = new LongDoubleHashMap();
+        map.put(1, 1.);
+        Assertions.fails(IllegalArgumentException.class, () -> map.put(Long.MIN_VALUE, 1.), "the reserved key can not be put");
+        Assertions.fails(IllegalArgumentException.class, () -> map.get(Long.MIN_VALUE), "the reserved key can not be read");
+        Assertions.check(map.size() == 1, "rejected keys leave the map unchanged");
+    }
+
+    /**
+     * Checks that both maps hold the same entries.
+     * @param map The map under test.
+     * @param reference The reference map.
+     * @param same Whether the maps agreed during the preceding operations.
+     * @param message Description of the check.
+     */
+    static void check_same(LongDoubleHashMap map, HashMap<Long, Double> reference, boolean same, String message){
+        Assertions.check(same, message + ": results of the operations");
+        Assertions.check(map.size() == reference.size(), message + ": size " + map.size() + " instead of " + reference.size());
+        boolean[] ok = {true};
+        int[] visited = {0};
+        map.forEach((k, v) -> {
+            visited[0]++;
+            Double expected = reference.get(k);
+            ok[0] &= expected != null && Double.compare(expected, v) == 0;
+        });
+        Assertions.check(ok[0] && visited[0] == reference.size(), message + ": entries");
+    }
+
+    public static void main(String[] args){
+        run();
+        Assertions.exit();
+    }
+}